@@ -1,5 +1,7 @@
 package it.geosolutions.geoserver.security;
 
+import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguration;
+
 import java.util.Map;
 
 import org.geoserver.catalog.ResourceInfo;
@@ -10,6 +12,13 @@ import org.springframework.security.core.Authentication;
 /**
  * Interface for a dynamic access limits builder.
  * 
+ * <p>
+ * Access limits builders are typically declared as Spring beans and are never used directly: for each
+ * {@link AccessLimitsBuilderConfiguration} referencing a bean, the bean is {@link #bind(AccessLimitsBuilderConfiguration) bound} once to the
+ * configured options, and the resulting instance is the one actually building access limits. Bound instances must be immutable and thread-safe, as
+ * they are shared by all requests.
+ * </p>
+ * 
  * TODO: add methods to build workspace access limits.
  * 
  * @author Lorenzo Natali, GeoSolutions
@@ -40,16 +49,22 @@ public interface AccessLimitsBuilder {
     public String getDataSecurityToken(Authentication user, ResourceInfo resource);
 
     /**
-     * Returns the generic configuration options that the access limit builder will interpret.
+     * Returns the generic configuration options this access limits builder is bound to.
      * 
-     * @return a copy of the internal options map
+     * @return an unmodifiable view of the options
      */
     public Map<String, Object> getOptions();
 
     /**
-     * Sets the generic configuration options that the access limit builder will interpret.
+     * Binds this access limits builder to the options of the specified configuration.
+     * 
+     * <p>
+     * Options should be parsed here, once, so that building access limits never needs to inspect them again. The returned instance must be immutable
+     * and thread-safe; builders that do not interpret any option may return themselves.
+     * </p>
      * 
-     * @param options the configuration options to set
+     * @param configuration the access limits builder configuration
+     * @return an access limits builder bound to the configured options
      */
-    public void setOptions(Map<String, Object> options);
+    public AccessLimitsBuilder bind(AccessLimitsBuilderConfiguration configuration);
 }
@@ -0,0 +1,149 @@
+package it.geosolutions.geoserver.security.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, pre-compiled view of a list of {@link AccessRule}s.
+ *
+ * <p>
+ * Rules are indexed by workspace and layer name once, at configuration load time. For every workspace mentioned in the rules, the best matching
+ * access limits builder configuration is precomputed for each known layer, together with the fallback to use for any other layer; the same is done
+ * for the rules matching any workspace. A lookup thus amounts to at most two hash map gets, with no string concatenation nor any other allocation.
+ * </p>
+ *
+ * <p>
+ * The matching semantics are those documented in {@link PluggableAccessManagerConfiguration#getLimitsBuilderConfiguration(String, String)}, with the
+ * exception that the default builder configuration is not part of the compiled state: {@code null} is returned when no rule matches.
+ * </p>
+ *
+ * <p>
+ * Instances are thread-safe and can be freely shared once published.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+final class AccessRuleMatcher {
+
+    /** Compiled rules by workspace name. */
+    private final Map<String, WorkspaceRules> workspaces;
+
+    /** Compiled rules applying to workspaces not explicitly mentioned in any rule. */
+    private final WorkspaceRules anyWorkspace;
+
+    private AccessRuleMatcher(Map<String, WorkspaceRules> workspaces, WorkspaceRules anyWorkspace) {
+        this.workspaces = workspaces;
+        this.anyWorkspace = anyWorkspace;
+    }
+
+    /**
+     * Compiles the provided rules.
+     *
+     * <p>
+     * Rules are expected to be valid and to reference existing builder configurations. If several rules share the same key, the one appearing last
+     * wins.
+     * </p>
+     *
+     * @param rules the access rules
+     * @param buildersById the access limits builder configurations, by id
+     * @return the compiled matcher
+     */
+    static AccessRuleMatcher compile(List<AccessRule> rules,
+            Map<String, AccessLimitsBuilderConfiguration> buildersById) {
+        Map<String, Map<String, AccessLimitsBuilderConfiguration>> byWorkspaceAndLayer = new HashMap<String, Map<String, AccessLimitsBuilderConfiguration>>();
+        Map<String, AccessLimitsBuilderConfiguration> byWorkspace = new HashMap<String, AccessLimitsBuilderConfiguration>();
+        Map<String, AccessLimitsBuilderConfiguration> byLayer = new HashMap<String, AccessLimitsBuilderConfiguration>();
+        AccessLimitsBuilderConfiguration any = null;
+
+        for (AccessRule rule : rules) {
+            AccessLimitsBuilderConfiguration builder = buildersById.get(rule
+                    .getAccessLimitsBuilder());
+            boolean anyWorkspace = AccessRule.ANY.equals(rule.getWorkspace());
+            boolean anyLayer = AccessRule.ANY.equals(rule.getLayer());
+            if (anyWorkspace && anyLayer) {
+                any = builder;
+            } else if (anyWorkspace) {
+                byLayer.put(rule.getLayer(), builder);
+            } else if (anyLayer) {
+                byWorkspace.put(rule.getWorkspace(), builder);
+            } else {
+                Map<String, AccessLimitsBuilderConfiguration> layers = byWorkspaceAndLayer.get(rule
+                        .getWorkspace());
+                if (layers == null) {
+                    layers = new HashMap<String, AccessLimitsBuilderConfiguration>();
+                    byWorkspaceAndLayer.put(rule.getWorkspace(), layers);
+                }
+                layers.put(rule.getLayer(), builder);
+            }
+        }
+
+        // <any workspace>.<layer> rules come first, then <any workspace>.<any layer>
+        WorkspaceRules anyWorkspace = new WorkspaceRules(byLayer, any);
+
+        Set<String> workspaceNames = new HashSet<String>(byWorkspaceAndLayer.keySet());
+        workspaceNames.addAll(byWorkspace.keySet());
+        Map<String, WorkspaceRules> workspaces = new HashMap<String, WorkspaceRules>();
+        for (String workspace : workspaceNames) {
+            Map<String, AccessLimitsBuilderConfiguration> layers = new HashMap<String, AccessLimitsBuilderConfiguration>();
+            AccessLimitsBuilderConfiguration fallback = byWorkspace.get(workspace);
+            if (fallback == null) {
+                // no <workspace>.* rule: <any workspace>.<layer> rules apply, then *.*
+                layers.putAll(byLayer);
+                fallback = any;
+            }
+            // <workspace>.<layer> rules always win
+            Map<String, AccessLimitsBuilderConfiguration> specific = byWorkspaceAndLayer
+                    .get(workspace);
+            if (specific != null) {
+                layers.putAll(specific);
+            }
+            workspaces.put(workspace, new WorkspaceRules(layers, fallback));
+        }
+
+        return new AccessRuleMatcher(workspaces, anyWorkspace);
+    }
+
+    /**
+     * Looks up the access limits builder configuration matching the specified workspace and layer.
+     *
+     * @param workspace the workspace name
+     * @param layer the layer name, or {@link AccessRule#ANY} to match by workspace only
+     * @return the matching builder configuration, or {@code null} if no rule matches
+     */
+    AccessLimitsBuilderConfiguration lookup(String workspace, String layer) {
+        WorkspaceRules rules = workspaces.get(workspace);
+        if (rules == null) {
+            rules = anyWorkspace;
+        }
+        if (AccessRule.ANY.equals(layer)) {
+            return rules.fallback;
+        }
+        AccessLimitsBuilderConfiguration match = rules.layers.get(layer);
+        return (match != null) ? match : rules.fallback;
+    }
+
+    /**
+     * Compiled rules for a single workspace.
+     */
+    private static final class WorkspaceRules {
+
+        /** Best matching builder configuration by layer name. */
+        final Map<String, AccessLimitsBuilderConfiguration> layers;
+
+        /** Builder configuration applying to any other layer (may be {@code null}). */
+        final AccessLimitsBuilderConfiguration fallback;
+
+        WorkspaceRules(Map<String, AccessLimitsBuilderConfiguration> layers,
+                AccessLimitsBuilderConfiguration fallback) {
+            this.layers = Collections.unmodifiableMap(new HashMap<String, AccessLimitsBuilderConfiguration>(
+                    layers));
+            this.fallback = fallback;
+        }
+    }
+
+}
@@ -27,7 +27,9 @@ import com.thoughtworks.xstream.XStream;
  * </p>
  * 
  * <p>
- * Note that this class keeps internal state to speed up configuration lookups and is thus eminently NOT thread-safe.
+ * Note that this class keeps internal state to speed up configuration lookups and its setters are thus eminently NOT thread-safe: a configuration
+ * should be fully built before being published. Once published, lookups via {@link #getLimitsBuilderConfiguration(String, String)} are lock-free
+ * and can be safely performed concurrently, as they only read the immutable rule matcher compiled by the last state update.
  * </p>
  * 
  * @author Stefano Costa, GeoSolutions
@@ -61,6 +63,9 @@ public class PluggableAccessManagerConfiguration {
     /** {@link HashMap} to easily lookup access rules by key. */
     private HashMap<String, AccessRule> rulesByKey;
 
+    /** Immutable matcher compiled from the current rules; {@code null} if the configuration is invalid or not compiled yet. */
+    private transient volatile AccessRuleMatcher matcher;
+
     /** Default access limits builder configuration. Applied when no rule matches. */
     private AccessLimitsBuilderConfiguration defaultAccessLimitsBuilder;
 
@@ -223,10 +228,10 @@ public class PluggableAccessManagerConfiguration {
     }
 
     /**
-     * Updates internal state, i.e. the hash maps used to speed up lookups.
+     * Updates internal state, i.e. the hash maps used to speed up lookups and the compiled rule matcher.
      * 
      * <p>
-     * If the configuration is invalid, the state is not updated.
+     * If the configuration is invalid, the state is not updated and the rule matcher is discarded.
      * </p>
      */
     void updateState() {
@@ -234,6 +239,7 @@ public class PluggableAccessManagerConfiguration {
             if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine("Configuration is invalid, cannot rebuild internal state");
             }
+            this.matcher = null;
             return;
         }
         if (LOGGER.isLoggable(Level.FINE)) {
@@ -253,6 +259,7 @@ public class PluggableAccessManagerConfiguration {
         for (AccessRule rule : rules) {
             rulesByKey.put(rule.getKey(), rule);
         }
+        this.matcher = AccessRuleMatcher.compile(rules, buildersById);
     }
 
     /**
@@ -276,6 +283,10 @@ public class PluggableAccessManagerConfiguration {
      * If no rule was found, the default access limits builder configuration is returned.
      * </p>
      * 
+     * <p>
+     * The lookup is performed against the rule matcher compiled by the last state update, so it involves no validation and no key building.
+     * </p>
+     * 
      * @param workspace the workspace
      * @param layer the layer (can be * to lookup configuration by workspace only)
      * @return the access limits builder restricting the resource
@@ -289,37 +300,24 @@ public class PluggableAccessManagerConfiguration {
             throw new IllegalArgumentException("layer must be specified, use " + AccessRule.ANY
                     + " to lookup configuration by workspace only");
         }
-        if (!isValid()) {
-            throw new IllegalArgumentException(
-                    "Current configuration is not valid, please fix before using it");
-        }
-
-        // TODO: add log statements
-        Map<String, AccessRule> rulesByKey = getRulesByKey();
-        Map<String, AccessLimitsBuilderConfiguration> buildersById = getBuildersById();
-        AccessRule bestMatch = null;
-        String mostSpecificKey = AccessRule.buildKey(workspace, layer);
-        if (!AccessRule.ANY.equals(layer) && rulesByKey.containsKey(mostSpecificKey)) {
-            bestMatch = rulesByKey.get(mostSpecificKey);
-        } else {
-            String workspaceOnlyKey = AccessRule.buildKey(workspace, AccessRule.ANY);
-            if (rulesByKey.containsKey(workspaceOnlyKey)) {
-                bestMatch = rulesByKey.get(workspaceOnlyKey);
-            } else {
-                String layerOnlyKey = AccessRule.buildKey(AccessRule.ANY, layer);
-                if (!AccessRule.ANY.equals(layer) && rulesByKey.containsKey(layerOnlyKey)) {
-                    bestMatch = rulesByKey.get(layerOnlyKey);
-                } else {
-                    String mostGenericKey = AccessRule.buildKey(AccessRule.ANY, AccessRule.ANY);
-                    if (rulesByKey.containsKey(mostGenericKey)) {
-                        bestMatch = rulesByKey.get(mostGenericKey);
-                    }
+        AccessRuleMatcher matcher = this.matcher;
+        if (matcher == null) {
+            // compile lazily, e.g. for configurations built programmatically
+            synchronized (this) {
+                if (this.matcher == null) {
+                    updateState();
                 }
+                matcher = this.matcher;
+            }
+            if (matcher == null) {
+                throw new IllegalArgumentException(
+                        "Current configuration is not valid, please fix before using it");
             }
         }
 
+        AccessLimitsBuilderConfiguration bestMatch = matcher.lookup(workspace, layer);
         if (bestMatch != null) {
-            return buildersById.get(bestMatch.getAccessLimitsBuilder());
+            return bestMatch;
         } else {
             return getDefaultAccessLimitsBuilder();
         }
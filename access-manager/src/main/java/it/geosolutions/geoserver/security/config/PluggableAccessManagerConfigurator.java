@@ -116,7 +116,10 @@ public class PluggableAccessManagerConfigurator implements ApplicationListener<C
 
     void buildDefaultConfiguration() {
         if (defaultConfiguration == null) {
-            this.defaultConfiguration = new PluggableAccessManagerConfiguration();
+            PluggableAccessManagerConfiguration configuration = new PluggableAccessManagerConfiguration();
+            // compile the (empty) rule set before publishing the configuration
+            configuration.updateState();
+            this.defaultConfiguration = configuration;
         }
     }
 
@@ -0,0 +1,39 @@
+package it.geosolutions.geoserver.security.gwc.dispatch;
+
+import java.util.Map;
+
+import org.springframework.security.core.Authentication;
+
+/**
+ * Cache of the data security tokens computed by {@link GwcDataSecurityDispatcher}.
+ *
+ * <p>
+ * Tokens are grouped by user: implementations are expected to keep each user's tokens for as long as the user's permissions are cached, and to
+ * invalidate them together.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public interface DataSecurityTokenCache {
+
+    /**
+     * Returns the tokens computed so far for the specified user, by layer id and resolution version (see
+     * {@link it.geosolutions.geoserver.security.impl.PluggableAccessManager#getResolutionVersion()}).
+     *
+     * <p>
+     * The returned map is shared by all requests of the same user and must be thread-safe: the dispatcher adds tokens to it as they are computed.
+     * Tokens of outdated versions are no longer looked up, and are dropped along with the map.
+     * </p>
+     *
+     * @param user the authenticated user
+     * @return the user's tokens, keyed by the dispatcher
+     */
+    public Map<String, String> getUserTokens(Authentication user);
+
+    /**
+     * Removes the tokens of all users.
+     */
+    public void clear();
+
+}
@@ -4,6 +4,7 @@ import it.geosolutions.geoserver.security.impl.PluggableAccessManager;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -11,6 +12,7 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geoserver.security.SecureCatalogImpl;
 import org.geoserver.wms.GetMapRequest;
@@ -32,6 +34,13 @@ import org.springframework.security.core.context.SecurityContextHolder;
  * </p>
  * 
  * <p>
+ * If a {@link DataSecurityTokenCache} is available (either injected or found in the application context), tokens are cached per user and layer,
+ * for as long as the user's permissions are. Cached tokens are keyed by the access manager {@link PluggableAccessManager#getResolutionVersion()
+ * resolution version} too, so that they are not served once the configuration changes or the layer is renamed, moved or removed, even if they
+ * were being computed at the time.
+ * </p>
+ * 
+ * <p>
  * A current limitation is that a {@value #GWC_DATA_SECURITY_PARAM} parameter filter must be manually setup for each secured layer in the tile layer
  * configuration page.
  * </p>
@@ -53,6 +62,16 @@ public class GwcDataSecurityDispatcher extends AbstractDispatcherCallback {
 
     PluggableAccessManager pluggableAccessManager;
 
+    /** The token cache, looked up lazily if not injected. */
+    volatile DataSecurityTokenCache tokenCache;
+
+    /** Whether the token cache has been looked up in the application context. */
+    volatile boolean tokenCacheLookedUp;
+
+    final AtomicLong tokenCacheHits = new AtomicLong();
+
+    final AtomicLong tokenCacheMisses = new AtomicLong();
+
     /**
      * Retrieves a security token from the provided {@link PluggableAccessManager} instance and adds it as a parameter to the request.
      */
@@ -64,8 +83,7 @@ public class GwcDataSecurityDispatcher extends AbstractDispatcherCallback {
             GetMapRequest getMap = (GetMapRequest) operation.getParameters()[0];
             LayerInfo layer = getLayerInfo(getMap);
             if (layer != null) {
-                String securityToken = pluggableAccessManager.getDataSecurityToken(
-                        getLoggedInUser(), layer.getResource());
+                String securityToken = getDataSecurityToken(getLoggedInUser(), layer);
                 if (securityToken != null) {
                     if (LOGGER.isLoggable(Level.FINER)) {
                         LOGGER.finer("Adding " + GWC_DATA_SECURITY_PARAM
@@ -78,6 +96,65 @@ public class GwcDataSecurityDispatcher extends AbstractDispatcherCallback {
         return operation;
     }
 
+    /**
+     * Returns the data security token for the specified user and layer, from the token cache if possible.
+     * 
+     * @param user the authenticated user
+     * @param layer the requested layer
+     * @return the data security token
+     */
+    String getDataSecurityToken(Authentication user, LayerInfo layer) {
+        DataSecurityTokenCache cache = getTokenCache();
+        if (cache == null || layer.getId() == null) {
+            return pluggableAccessManager.getDataSecurityToken(user, layer.getResource());
+        }
+        // read before computing the token: if the builder resolution changes meanwhile, the token is stored under an outdated key
+        String key = pluggableAccessManager.getResolutionVersion() + "/" + layer.getId();
+        Map<String, String> userTokens = cache.getUserTokens(user);
+        String token = userTokens.get(key);
+        if (token != null) {
+            tokenCacheHits.incrementAndGet();
+            return token;
+        }
+        tokenCacheMisses.incrementAndGet();
+        token = pluggableAccessManager.getDataSecurityToken(user, layer.getResource());
+        if (token != null) {
+            userTokens.put(key, token);
+        }
+        return token;
+    }
+
+    DataSecurityTokenCache getTokenCache() {
+        if (tokenCache == null && !tokenCacheLookedUp) {
+            tokenCache = GeoServerExtensions.bean(DataSecurityTokenCache.class);
+            tokenCacheLookedUp = true;
+        }
+        return tokenCache;
+    }
+
+    /**
+     * @return the number of tokens served from the token cache
+     */
+    public long getTokenCacheHitCount() {
+        return tokenCacheHits.get();
+    }
+
+    /**
+     * @return the number of tokens that had to be computed
+     */
+    public long getTokenCacheMissCount() {
+        return tokenCacheMisses.get();
+    }
+
+    /**
+     * @return the ratio of tokens served from the token cache, or {@code 1} if no token was requested yet
+     */
+    public double getTokenCacheHitRate() {
+        long hits = tokenCacheHits.get();
+        long requests = hits + tokenCacheMisses.get();
+        return (requests == 0) ? 1.0 : (double) hits / requests;
+    }
+
     /**
      * Cache only WMS GetMap requests, with {@code TILED} parameter set to {@code true}.
      * 
@@ -141,6 +218,15 @@ public class GwcDataSecurityDispatcher extends AbstractDispatcherCallback {
         this.pluggableAccessManager = pluggableAccessManager;
     }
 
+    /**
+     * Enables setter injection of a {@link DataSecurityTokenCache} instance; if none is injected, one is looked up in the application context.
+     * 
+     * @param tokenCache the token cache to set
+     */
+    public void setTokenCache(DataSecurityTokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
     /**
      * Enables setter injection of a {@link SecureCatalogImpl} instance.
      * 
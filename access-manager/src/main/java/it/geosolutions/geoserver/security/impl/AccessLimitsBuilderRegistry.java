@@ -0,0 +1,176 @@
+package it.geosolutions.geoserver.security.impl;
+
+import it.geosolutions.geoserver.security.AccessLimitsBuilder;
+import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguration;
+import it.geosolutions.geoserver.security.config.PluggableAccessManagerConfiguration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Immutable registry of the access limits builders referenced by a {@link PluggableAccessManagerConfiguration}.
+ *
+ * <p>
+ * The registry is built eagerly, when a configuration is published: every bean referenced by the configuration (plus any additional bean, e.g. the
+ * one granting admin rights) is looked up once, and every access limits builder configuration is bound to its options. Lookups never touch the
+ * Spring context and, since the registry is never modified after construction, need no synchronization.
+ * </p>
+ *
+ * <p>
+ * Beans that cannot be looked up or bound do not prevent the registry from being built: the failure is logged and reported again, as an
+ * {@link IllegalArgumentException}, each time the corresponding builder is requested.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+final class AccessLimitsBuilderRegistry {
+
+    private static final Logger LOGGER = Logging.getLogger(AccessLimitsBuilderRegistry.class);
+
+    /**
+     * Looks up access limits builder beans by name.
+     */
+    interface BeanLookup {
+
+        /**
+         * @param beanName the bean name
+         * @return the access limits builder bean
+         * @throws Exception if the bean cannot be looked up
+         */
+        AccessLimitsBuilder lookup(String beanName) throws Exception;
+    }
+
+    /** The configuration this registry was built from. */
+    private final PluggableAccessManagerConfiguration configuration;
+
+    /** Access limits builder beans by name. */
+    private final Map<String, AccessLimitsBuilder> beans;
+
+    /** Bound access limits builders by (identity of) builder configuration. */
+    private final Map<AccessLimitsBuilderConfiguration, AccessLimitsBuilder> bound;
+
+    /** Lookup or binding failures, by bean name or builder configuration id. */
+    private final Map<String, Exception> failures;
+
+    private AccessLimitsBuilderRegistry(PluggableAccessManagerConfiguration configuration) {
+        this.configuration = configuration;
+        this.beans = new HashMap<String, AccessLimitsBuilder>();
+        this.bound = new IdentityHashMap<AccessLimitsBuilderConfiguration, AccessLimitsBuilder>();
+        this.failures = new HashMap<String, Exception>();
+    }
+
+    /**
+     * Builds a registry for the specified configuration.
+     *
+     * @param configuration the configuration (may be {@code null}, in which case an empty registry is returned)
+     * @param lookup the bean lookup strategy (may be {@code null}, in which case no bean is registered)
+     * @param additionalBeans names of additional beans to register, besides the ones referenced by the configuration
+     * @return the registry
+     */
+    static AccessLimitsBuilderRegistry build(PluggableAccessManagerConfiguration configuration,
+            BeanLookup lookup, String... additionalBeans) {
+        AccessLimitsBuilderRegistry registry = new AccessLimitsBuilderRegistry(configuration);
+        if (configuration == null || lookup == null) {
+            return registry;
+        }
+
+        List<AccessLimitsBuilderConfiguration> builderConfs = new ArrayList<AccessLimitsBuilderConfiguration>(
+                configuration.getAccessLimitsBuilders());
+        builderConfs.add(configuration.getDefaultAccessLimitsBuilder());
+        for (String beanName : additionalBeans) {
+            registry.lookupBean(beanName, lookup);
+        }
+        for (AccessLimitsBuilderConfiguration builderConf : builderConfs) {
+            if (builderConf == null) {
+                // invalid configuration, will be reported on lookup
+                continue;
+            }
+            AccessLimitsBuilder bean = registry.lookupBean(builderConf.getBeanName(), lookup);
+            if (bean != null) {
+                try {
+                    registry.bound.put(builderConf, bean.bind(builderConf));
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to bind access limits builder "
+                            + builderConf.getBeanName() + " to configuration " + builderConf.getId(),
+                            e);
+                    registry.failures.put(builderConf.getId(), e);
+                }
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Registered " + registry.beans.size() + " access limits builder beans and "
+                    + registry.bound.size() + " bound builders");
+        }
+        return registry;
+    }
+
+    private AccessLimitsBuilder lookupBean(String beanName, BeanLookup lookup) {
+        if (beans.containsKey(beanName)) {
+            return beans.get(beanName);
+        }
+        if (failures.containsKey(beanName)) {
+            return null;
+        }
+        try {
+            AccessLimitsBuilder bean = lookup.lookup(beanName);
+            beans.put(beanName, bean);
+            return bean;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to lookup access limits builder: " + beanName, e);
+            failures.put(beanName, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the configuration this registry was built from (may be {@code null})
+     */
+    PluggableAccessManagerConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Returns the access limits builder bean with the specified name, as is (i.e. not bound to any configuration).
+     *
+     * @param beanName the bean name
+     * @return the access limits builder bean
+     * @throws IllegalArgumentException if the bean was not registered or could not be looked up
+     */
+    AccessLimitsBuilder getBean(String beanName) {
+        AccessLimitsBuilder bean = beans.get(beanName);
+        if (bean == null) {
+            throw new IllegalArgumentException("Failed to lookup access limits builder: "
+                    + beanName, failures.get(beanName));
+        }
+        return bean;
+    }
+
+    /**
+     * Returns the access limits builder bound to the specified configuration.
+     *
+     * @param builderConf the access limits builder configuration, as returned by the configuration this registry was built from
+     * @return the bound access limits builder
+     * @throws IllegalArgumentException if the builder was not registered or could not be looked up or bound
+     */
+    AccessLimitsBuilder getAccessLimitsBuilder(AccessLimitsBuilderConfiguration builderConf) {
+        AccessLimitsBuilder alb = bound.get(builderConf);
+        if (alb == null) {
+            Exception failure = failures.get(builderConf.getBeanName());
+            if (failure == null) {
+                failure = failures.get(builderConf.getId());
+            }
+            throw new IllegalArgumentException("Failed to lookup access limits builder: "
+                    + builderConf.getBeanName(), failure);
+        }
+        return alb;
+    }
+
+}
@@ -1,16 +1,15 @@
 package it.geosolutions.geoserver.security.impl;
 
 import it.geosolutions.geoserver.security.AccessLimitsBuilder;
-import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguration;
 import it.geosolutions.geoserver.security.config.PluggableAccessManagerConfiguration;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
@@ -32,6 +31,9 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.security.core.Authentication;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * A {@link ResourceAccessManager} implementation that uses {@link AccessLimitsBuilder} beans to construct access limits to resource.
  * 
@@ -58,29 +60,49 @@ public class PluggableAccessManager implements ResourceAccessManager, Applicatio
     /** The bean name of the access limits builder used to grant admin rights. */
     static final String ADMIN_ACCESS_LIMITS_BUILDER = "allowAllAccessLimitsBuilder";
 
-    private PluggableAccessManagerConfiguration configuration;
+    /**
+     * The current configuration, along with the access limits builders it references, published by atomic reference swap.
+     */
+    private final AtomicReference<AccessLimitsBuilderRegistry> registry;
+
+    private volatile ApplicationContext context;
+
+    /** Cache of the bound access limits builders resolved for each resource. */
+    final ResolvedBuilderCache resolvedBuilders;
 
-    private ReentrantReadWriteLock configurationLock;
+    /** Seconds after which a memoized admin check expires. */
+    static final int ADMIN_CHECK_TIME_TO_LIVE = 60;
 
-    private ApplicationContext context;
+    /** The security manager, looked up once. */
+    private volatile GeoServerSecurityManager securityManager;
 
-    /** Internal cache of access limits builder beans. */
-    Map<String, AccessLimitsBuilder> accessLimitsBuildersCache;
+    /**
+     * Memoized admin checks. Keys are weak (and compared by identity), so entries are dropped as soon as the authentication is no longer
+     * referenced, e.g. when the request ends.
+     */
+    final Cache<Authentication, Boolean> adminChecks = CacheBuilder.newBuilder().weakKeys()
+            .expireAfterWrite(ADMIN_CHECK_TIME_TO_LIVE, TimeUnit.SECONDS).build();
 
     /** Number of bean lookups from Spring context - for testing purposes */
-    int numLookups = 0;
+    final AtomicInteger numLookups = new AtomicInteger();
 
     /**
      * Default constructor.
      */
     public PluggableAccessManager() {
-        this.configurationLock = new ReentrantReadWriteLock();
-        accessLimitsBuildersCache = new HashMap<String, AccessLimitsBuilder>();
+        AccessLimitsBuilderRegistry empty = buildRegistry(null);
+        this.registry = new AtomicReference<AccessLimitsBuilderRegistry>(empty);
+        this.resolvedBuilders = new ResolvedBuilderCache(empty);
     }
 
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.context = applicationContext;
+        PluggableAccessManagerConfiguration current = getConfiguration();
+        if (current != null) {
+            // configuration was set before the context, lookup beans again
+            setConfiguration(current);
+        }
     }
 
     /**
@@ -142,85 +164,111 @@ public class PluggableAccessManager implements ResourceAccessManager, Applicatio
     }
 
     /**
+     * Returns a number which changes whenever the access limits builder applying to a resource may change, i.e. when a new configuration is
+     * published or when resources are renamed, moved or removed; values derived from the resolved builders, like data security tokens, can be
+     * cached along with the version read before computing them.
+     * 
+     * @return the current resolution version
+     */
+    public long getResolutionVersion() {
+        return resolvedBuilders.getVersion();
+    }
+
+    /**
+     * Returns the current configuration; no locking is involved, as configurations are immutable once published.
+     * 
      * @return the access manager configuration
      */
     public PluggableAccessManagerConfiguration getConfiguration() {
-        configurationLock.readLock().lock();
-        try {
-            return configuration;
-        } finally {
-            configurationLock.readLock().unlock();
-        }
+        return registry.get().getConfiguration();
     }
 
     /**
+     * Atomically replaces the current configuration.
+     * 
+     * <p>
+     * The provided configuration should be fully built (and its rules compiled) before being published, and not modified afterwards.
+     * </p>
+     * 
+     * <p>
+     * All the access limits builders referenced by the configuration are looked up and bound before the configuration is published, so that
+     * requests never hit the Spring context; builders that cannot be looked up are reported when first requested.
+     * </p>
+     * 
      * @param configuration the access manager configuration to set
      */
-    public void setConfiguration(PluggableAccessManagerConfiguration configuration) {
-        configurationLock.writeLock().lock();
-        try {
-            this.configuration = configuration;
-        } finally {
-            configurationLock.writeLock().unlock();
-        }
+    public synchronized void setConfiguration(PluggableAccessManagerConfiguration configuration) {
+        AccessLimitsBuilderRegistry newRegistry = buildRegistry(configuration);
+        this.registry.set(newRegistry);
+        // resources must be resolved again against the new configuration
+        this.resolvedBuilders.reset(newRegistry);
     }
 
-    boolean isAdmin(Authentication user) {
-        return GeoServerExtensions.bean(GeoServerSecurityManager.class)
-                .checkAuthenticationForAdminRole(user);
-    }
-
-    AccessLimitsBuilder getAccessLimitBuilder(Authentication user, ResourceInfo resource) {
-        String workspace = resource.getStore().getWorkspace().getName();
-        String name = resource.getName();
-        PluggableAccessManagerConfiguration config = getConfiguration();
-
-        Map<String, Object> options = Collections.emptyMap();
-        String accessLimitsBuilderBeanName = null;
-        if (isAdmin(user)) {
-            accessLimitsBuilderBeanName = ADMIN_ACCESS_LIMITS_BUILDER;
-        } else {
-            // lookup configuration first
-            AccessLimitsBuilderConfiguration limitsBuilderConf = config
-                    .getLimitsBuilderConfiguration(workspace, name);
-            if (LOGGER.isLoggable(Level.FINE)) {
-                LOGGER.fine("Access limits will be calculated by this builder: "
-                        + limitsBuilderConf.getBeanName());
-            }
-            // then retrieve bean name and options from config
-            accessLimitsBuilderBeanName = limitsBuilderConf.getBeanName();
-            options = limitsBuilderConf.getOptions();
+    private AccessLimitsBuilderRegistry buildRegistry(PluggableAccessManagerConfiguration configuration) {
+        final ApplicationContext ctx = this.context;
+        if (ctx == null) {
+            // beans will be looked up once the context is available
+            return AccessLimitsBuilderRegistry.build(configuration, null);
         }
+        return AccessLimitsBuilderRegistry.build(configuration,
+                new AccessLimitsBuilderRegistry.BeanLookup() {
+                    @Override
+                    public AccessLimitsBuilder lookup(String beanName) throws Exception {
+                        numLookups.incrementAndGet();
+                        return (AccessLimitsBuilder) ctx.getBean(beanName);
+                    }
+                }, ADMIN_ACCESS_LIMITS_BUILDER);
+    }
 
-        AccessLimitsBuilder alb = null;
-        try {
-            alb = getAccessLimitBuilder(accessLimitsBuilderBeanName);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Failed to lookup access limits builder: "
-                    + accessLimitsBuilderBeanName, e);
-        }
-        if (alb != null) {
-            // set configuration options
-            alb.setOptions(options);
+    /**
+     * Registers the internal cache of resolved access limits builders as a listener of the provided catalog, so that entries are evicted when
+     * resources are renamed, moved or removed.
+     * 
+     * @param catalog the catalog to listen to
+     */
+    public void setCatalog(Catalog catalog) {
+        if (catalog != null) {
+            catalog.addListener(resolvedBuilders);
         }
-        return alb;
     }
 
     /**
-     * Looks up an access limits builder bean from the Spring context by its name.
+     * Checks whether the user has the administrator role.
      * 
      * <p>
-     * If a bean is already present in the internal cache, no lookup is performed.
+     * The check is memoized per {@link Authentication} instance, so that it is performed once per request (or session) rather than once per
+     * resource.
      * </p>
      * 
-     * @param beanName the bean name
+     * @param user the authenticated user
+     * @return {@code true} if the user is an administrator, {@code false} otherwise
      */
-    AccessLimitsBuilder getAccessLimitBuilder(String beanName) {
-        if (!accessLimitsBuildersCache.containsKey(beanName)) {
-            AccessLimitsBuilder builder = (AccessLimitsBuilder) context.getBean(beanName);
-            accessLimitsBuildersCache.put(beanName, builder);
-            numLookups++;
+    boolean isAdmin(Authentication user) {
+        if (user == null) {
+            return getSecurityManager().checkAuthenticationForAdminRole(user);
+        }
+        Boolean admin = adminChecks.getIfPresent(user);
+        if (admin == null) {
+            admin = getSecurityManager().checkAuthenticationForAdminRole(user);
+            adminChecks.put(user, admin);
+        }
+        return admin;
+    }
+
+    private GeoServerSecurityManager getSecurityManager() {
+        GeoServerSecurityManager manager = this.securityManager;
+        if (manager == null) {
+            manager = GeoServerExtensions.bean(GeoServerSecurityManager.class);
+            this.securityManager = manager;
+        }
+        return manager;
+    }
+
+    AccessLimitsBuilder getAccessLimitBuilder(Authentication user, ResourceInfo resource) {
+        if (isAdmin(user)) {
+            return registry.get().getBean(ADMIN_ACCESS_LIMITS_BUILDER);
         }
-        return accessLimitsBuildersCache.get(beanName);
+        // resolved once per resource
+        return resolvedBuilders.getAccessLimitsBuilder(resource);
     }
 }
@@ -1,6 +1,7 @@
 package it.geosolutions.geoserver.security.impl;
 
 import it.geosolutions.geoserver.security.AccessLimitsBuilder;
+import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguration;
 
 import java.util.Collections;
 import java.util.Map;
@@ -30,6 +31,9 @@ public class ReadWriteAccessLimitsBuilder implements AccessLimitsBuilder {
 
     private boolean canWrite = false;
 
+    /** The data security token, which only depends on the read/write flags. */
+    private volatile String dataSecurityToken = buildDataSecurityToken();
+
     @Override
     public DataAccessLimits buildAccessLimits(Authentication user, ResourceInfo resource,
             CatalogMode catalogMode) {
@@ -49,8 +53,15 @@ public class ReadWriteAccessLimitsBuilder implements AccessLimitsBuilder {
         }
     }
 
+    /**
+     * The token is computed once, when the read/write flags are set, and is the same for any user and resource.
+     */
     @Override
     public String getDataSecurityToken(Authentication user, ResourceInfo resource) {
+        return dataSecurityToken;
+    }
+
+    private String buildDataSecurityToken() {
         StringBuilder sb = new StringBuilder();
         sb.append(getReadFilter().toString()).append("_").append(getWriteFilter().toString());
 
@@ -62,9 +73,12 @@ public class ReadWriteAccessLimitsBuilder implements AccessLimitsBuilder {
         return Collections.emptyMap();
     }
 
+    /**
+     * This access limits builder has no configuration options, the same instance is always returned.
+     */
     @Override
-    public void setOptions(Map<String, Object> options) {
-        // no-op: this access limit builder has no configuration options
+    public AccessLimitsBuilder bind(AccessLimitsBuilderConfiguration configuration) {
+        return this;
     }
 
     Filter getReadFilter() {
@@ -87,6 +101,7 @@ public class ReadWriteAccessLimitsBuilder implements AccessLimitsBuilder {
      */
     public void setCanRead(boolean canRead) {
         this.canRead = canRead;
+        this.dataSecurityToken = buildDataSecurityToken();
     }
 
     /**
@@ -101,6 +116,7 @@ public class ReadWriteAccessLimitsBuilder implements AccessLimitsBuilder {
      */
     public void setCanWrite(boolean canWrite) {
         this.canWrite = canWrite;
+        this.dataSecurityToken = buildDataSecurityToken();
     }
 
 }
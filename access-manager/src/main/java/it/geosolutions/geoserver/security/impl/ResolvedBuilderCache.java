@@ -0,0 +1,203 @@
+package it.geosolutions.geoserver.security.impl;
+
+import it.geosolutions.geoserver.security.AccessLimitsBuilder;
+import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguration;
+import it.geosolutions.geoserver.security.config.PluggableAccessManagerConfiguration;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Caches the access limits builder resolved for each resource, keyed by the resource's catalog id.
+ *
+ * <p>
+ * Resolution consists in looking up the {@link AccessLimitsBuilderConfiguration} applying to the resource and fetching the builder bound to it
+ * from an {@link AccessLimitsBuilderRegistry}; bound builders are shared by all the resources they apply to.
+ * </p>
+ *
+ * <p>
+ * Each entry is tied to the registry (and thus to the {@link PluggableAccessManagerConfiguration}) it was resolved against: the whole cache is
+ * discarded when a new registry is published via {@link #reset(AccessLimitsBuilderRegistry)}.
+ * </p>
+ *
+ * <p>
+ * When registered as a catalog listener, entries are evicted whenever the resolution may change, i.e. when a resource is renamed, moved to another
+ * store or removed, when a store or workspace is modified or removed and when the catalog is reloaded.
+ * </p>
+ *
+ * <p>
+ * A {@link #getVersion() version} number is incremented after each reset or eviction, so that values derived from the resolved builders can be
+ * cached along with the version they were computed against.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+class ResolvedBuilderCache implements CatalogListener {
+
+    private static final Logger LOGGER = Logging.getLogger(ResolvedBuilderCache.class);
+
+    /** The current cache generation. */
+    private volatile Generation generation;
+
+    /** Incremented after each reset or eviction. */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param registry the initial registry
+     */
+    ResolvedBuilderCache(AccessLimitsBuilderRegistry registry) {
+        this.generation = new Generation(registry);
+    }
+
+    /**
+     * Discards all cached entries and binds the cache to a new registry.
+     *
+     * @param registry the registry resources will be resolved against
+     */
+    void reset(AccessLimitsBuilderRegistry registry) {
+        this.generation = new Generation(registry);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns the current version; read it before resolving a builder, so that a value derived from a builder resolved against an outdated
+     * configuration is always associated with an outdated version.
+     *
+     * @return the number of resets and evictions so far
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the bound access limits builder for the specified resource, resolving it against the current configuration if it is not cached yet.
+     *
+     * @param resource the resource
+     * @return the access limits builder applying to the resource
+     */
+    AccessLimitsBuilder getAccessLimitsBuilder(ResourceInfo resource) {
+        // read the generation once, so that resolution and caching are consistent
+        Generation current = this.generation;
+        String id = resource.getId();
+        if (id == null) {
+            // resource not in the catalog yet, can't cache it
+            return resolve(current, resource);
+        }
+        AccessLimitsBuilder resolved = current.resolved.get(id);
+        if (resolved == null) {
+            resolved = resolve(current, resource);
+            current.resolved.put(id, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    int size() {
+        return generation.resolved.size();
+    }
+
+    private AccessLimitsBuilder resolve(Generation current, ResourceInfo resource) {
+        PluggableAccessManagerConfiguration configuration = current.registry.getConfiguration();
+        if (configuration == null) {
+            throw new IllegalStateException("Access manager configuration has not been set");
+        }
+        String workspace = resource.getStore().getWorkspace().getName();
+        AccessLimitsBuilderConfiguration builderConf = configuration.getLimitsBuilderConfiguration(
+                workspace, resource.getName());
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Access limits for resource " + resource.getName()
+                    + " will be calculated by this builder: " + builderConf.getBeanName());
+        }
+        return current.registry.getAccessLimitsBuilder(builderConf);
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // new objects have new ids, nothing to evict
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        evict(event);
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        evict(event);
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        // evict again, in case a lookup raced with the modification
+        evict(event);
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    private void evict(CatalogEvent event) {
+        CatalogInfo source = event.getSource();
+        if (source instanceof ResourceInfo) {
+            generation.resolved.remove(source.getId());
+            version.incrementAndGet();
+        } else if (source instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) source).getResource();
+            if (resource != null) {
+                generation.resolved.remove(resource.getId());
+            }
+            version.incrementAndGet();
+        } else if (source instanceof StoreInfo || source instanceof WorkspaceInfo) {
+            // affects all contained resources, which are not tracked individually
+            clear();
+        }
+    }
+
+    private void clear() {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Clearing resolved access limits builders cache");
+        }
+        generation.resolved.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Cached entries, along with the registry they were resolved against.
+     */
+    private static final class Generation {
+
+        final AccessLimitsBuilderRegistry registry;
+
+        /** Bound builders by resource id. */
+        final ConcurrentMap<String, AccessLimitsBuilder> resolved;
+
+        Generation(AccessLimitsBuilderRegistry registry) {
+            this.registry = registry;
+            this.resolved = new ConcurrentHashMap<String, AccessLimitsBuilder>();
+        }
+    }
+
+}
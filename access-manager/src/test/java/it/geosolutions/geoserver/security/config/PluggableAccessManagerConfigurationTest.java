@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.apache.commons.lang.StringUtils;
 import org.geoserver.security.CatalogMode;
@@ -184,6 +185,62 @@ public class PluggableAccessManagerConfigurationTest {
         assertEquals(CatalogMode.CHALLENGE, conf.getCatalogMode());
     }
 
+    @Test
+    public void testRuleMatchingPrecedence() {
+        AccessLimitsBuilderConfiguration wsBuilder = buildBuilderConf("ws-only");
+        AccessLimitsBuilderConfiguration layerBuilder = buildBuilderConf("layer-only");
+        AccessLimitsBuilderConfiguration specificBuilder = buildBuilderConf("specific");
+        AccessLimitsBuilderConfiguration anyBuilder = buildBuilderConf("any");
+
+        PluggableAccessManagerConfiguration conf = new PluggableAccessManagerConfiguration();
+        conf.setAccessLimitsBuilders(Arrays.asList(wsBuilder, layerBuilder, specificBuilder,
+                anyBuilder), false);
+        conf.setRules(Arrays.asList(buildRule("topp", "*", wsBuilder),
+                buildRule("*", "rivers", layerBuilder), buildRule("topp", "states", specificBuilder),
+                buildRule("sf", "states", specificBuilder)));
+        assertTrue(conf.isValid());
+
+        // <workspace>.<layer> wins over anything else
+        assertEquals("specific", conf.getLimitsBuilderConfiguration("topp", "states").getId());
+        // <workspace>.* wins over *.<layer>
+        assertEquals("ws-only", conf.getLimitsBuilderConfiguration("topp", "rivers").getId());
+        assertEquals("ws-only", conf.getLimitsBuilderConfiguration("topp", "other").getId());
+        assertEquals("ws-only", conf.getLimitsBuilderConfiguration("topp", AccessRule.ANY).getId());
+        // *.<layer> applies to workspaces with no <workspace>.* rule
+        assertEquals("layer-only", conf.getLimitsBuilderConfiguration("sf", "rivers").getId());
+        assertEquals("layer-only", conf.getLimitsBuilderConfiguration("whatever", "rivers")
+                .getId());
+        // no *.* rule: default builder applies
+        assertEquals(PluggableAccessManagerConfiguration.DEFAULT_CONFIG_ID, conf
+                .getLimitsBuilderConfiguration("sf", "other").getId());
+        assertEquals(PluggableAccessManagerConfiguration.DEFAULT_CONFIG_ID, conf
+                .getLimitsBuilderConfiguration("whatever", AccessRule.ANY).getId());
+
+        // add a *.* rule and recompile
+        conf.setRules(Arrays.asList(buildRule("topp", "*", wsBuilder),
+                buildRule("*", "rivers", layerBuilder), buildRule("*", "*", anyBuilder)));
+        assertEquals("any", conf.getLimitsBuilderConfiguration("sf", "other").getId());
+        assertEquals("any", conf.getLimitsBuilderConfiguration("whatever", AccessRule.ANY).getId());
+        assertEquals("layer-only", conf.getLimitsBuilderConfiguration("sf", "rivers").getId());
+        assertEquals("ws-only", conf.getLimitsBuilderConfiguration("topp", "states").getId());
+    }
+
+    private AccessLimitsBuilderConfiguration buildBuilderConf(String id) {
+        AccessLimitsBuilderConfiguration builderConf = new AccessLimitsBuilderConfiguration();
+        builderConf.setId(id);
+        builderConf.setBeanName(id + "AccessLimitsBuilder");
+        return builderConf;
+    }
+
+    private AccessRule buildRule(String workspace, String layer,
+            AccessLimitsBuilderConfiguration builderConf) {
+        AccessRule rule = new AccessRule();
+        rule.setWorkspace(workspace);
+        rule.setLayer(layer);
+        rule.setAccessLimitsBuilder(builderConf.getId());
+        return rule;
+    }
+
     private PluggableAccessManagerConfiguration lookupConfig(String configLocation)
             throws IOException {
         try (InputStream in = getClass().getResourceAsStream(configLocation)) {
@@ -10,6 +10,8 @@ import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguratio
 import it.geosolutions.geoserver.security.config.AccessRule;
 import it.geosolutions.geoserver.security.config.PluggableAccessManagerConfiguration;
 
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.data.test.CiteTestData;
@@ -24,6 +26,7 @@ import org.geoserver.test.GeoServerSystemTestSupport;
 import org.geotools.feature.NameImpl;
 import org.junit.Test;
 import org.opengis.filter.Filter;
+import org.springframework.security.core.Authentication;
 
 public class PluggableAccessManagerTest extends GeoServerSystemTestSupport {
 
@@ -74,22 +77,57 @@ public class PluggableAccessManagerTest extends GeoServerSystemTestSupport {
     public void testAccessLimitsBuilderCache() {
         PluggableAccessManager accessManager = applicationContext.getBean(PluggableAccessManager.class);
         assertNotNull(accessManager);
-        // empty cache first
-        accessManager.accessLimitsBuildersCache.clear();
-        accessManager.numLookups = 0;
+        // publishing the configuration triggers a lookup of all the referenced beans:
+        // allowAllAccessLimitsBuilder (used for admins, too) and denyAllAccessLimitsBuilder
+        accessManager.numLookups.set(0);
+        accessManager.setConfiguration(accessManager.getConfiguration());
+        assertEquals(2, accessManager.numLookups.get());
 
         LayerInfo buildings = getCatalog().getLayerByName(new NameImpl(CiteTestData.BUILDINGS));
-        // trigger a lookup of bean allowAllAccessLimitsBuilder from Spring's context
+        // no lookup of bean allowAllAccessLimitsBuilder from Spring's context
         DataAccessLimits limits = accessManager.getAccessLimits(getLoggedInUser(), buildings);
-        assertEquals(1, accessManager.numLookups);
+        assertEquals(2, accessManager.numLookups.get());
         LayerInfo dem = getCatalog().getLayerByName(new NameImpl(CiteTestData.TASMANIA_DEM));
-        // this call should NOT trigger another lookup, as the same access limit builder applies
         limits = accessManager.getAccessLimits(getLoggedInUser(), dem);
-        assertEquals(1, accessManager.numLookups);
+        assertEquals(2, accessManager.numLookups.get());
         LayerInfo bridges = getCatalog().getLayerByName(new NameImpl(CiteTestData.BRIDGES));
-        // a second lookup is necessary here, to fetch bean denyAllAccessLimitsBuilder from context
+        // nor of bean denyAllAccessLimitsBuilder
         limits = accessManager.getAccessLimits(getLoggedInUser(), bridges);
-        assertEquals(2, accessManager.numLookups);
+        assertEquals(2, accessManager.numLookups.get());
+    }
+
+    @Test
+    public void testResolvedBuildersCache() {
+        PluggableAccessManager accessManager = applicationContext.getBean(PluggableAccessManager.class);
+        assertNotNull(accessManager);
+        Catalog rawCatalog = (Catalog) applicationContext.getBean("rawCatalog");
+        loginAsRegularUser();
+
+        LayerInfo buildings = getCatalog().getLayerByName(new NameImpl(CiteTestData.BUILDINGS));
+        DataAccessLimits limits = accessManager.getAccessLimits(getLoggedInUser(), buildings);
+        assertAccessAllowed(limits, true);
+        assertTrue(accessManager.resolvedBuilders.size() > 0);
+
+        // renaming the resource evicts the cached entry: the cite.Buildings rule no longer applies
+        long version = accessManager.getResolutionVersion();
+        FeatureTypeInfo featureType = rawCatalog.getFeatureType(buildings.getResource().getId());
+        String originalName = featureType.getName();
+        featureType.setName("BuildingsRenamed");
+        rawCatalog.save(featureType);
+        // values derived from the previous resolution, e.g. data security tokens, are outdated
+        assertTrue(accessManager.getResolutionVersion() > version);
+        try {
+            limits = accessManager.getAccessLimits(getLoggedInUser(),
+                    rawCatalog.getFeatureType(featureType.getId()));
+            assertAccessDenied(limits, true);
+        } finally {
+            featureType = rawCatalog.getFeatureType(featureType.getId());
+            featureType.setName(originalName);
+            rawCatalog.save(featureType);
+        }
+        limits = accessManager.getAccessLimits(getLoggedInUser(),
+                rawCatalog.getFeatureType(featureType.getId()));
+        assertAccessAllowed(limits, true);
     }
 
     @Test
@@ -144,6 +182,25 @@ public class PluggableAccessManagerTest extends GeoServerSystemTestSupport {
         assertAccessAllowed(limits, false);
     }
 
+    @Test
+    public void testAdminCheckMemoized() {
+        PluggableAccessManager accessManager = applicationContext.getBean(PluggableAccessManager.class);
+        assertNotNull(accessManager);
+
+        loginAsAdmin();
+        Authentication admin = getLoggedInUser();
+        assertTrue(accessManager.isAdmin(admin));
+        assertEquals(Boolean.TRUE, accessManager.adminChecks.getIfPresent(admin));
+
+        logout();
+        loginAsRegularUser();
+        Authentication bob = getLoggedInUser();
+        assertFalse(accessManager.isAdmin(bob));
+        assertEquals(Boolean.FALSE, accessManager.adminChecks.getIfPresent(bob));
+        // memoized check is returned
+        assertFalse(accessManager.isAdmin(bob));
+    }
+
     @Test
     public void testWorkspaceAccess() {
         PluggableAccessManager accessManager = applicationContext.getBean(PluggableAccessManager.class);
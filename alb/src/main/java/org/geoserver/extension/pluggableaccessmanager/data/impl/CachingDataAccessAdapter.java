@@ -1,18 +1,39 @@
 package org.geoserver.extension.pluggableaccessmanager.data.impl;
 
+import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.DATA_SECURITY_TOKENS_CACHE;
 import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.PERMISSIONS_CACHE;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import net.sf.ehcache.Ehcache;
 
 import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
 import org.geoserver.extension.pluggableaccessmanager.data.DataAccessProvider;
 import org.geoserver.extension.pluggableaccessmanager.data.EvictableCache;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geoserver.extension.pluggableaccessmanager.security.impl.CacheHelper;
+import org.geoserver.extension.pluggableaccessmanager.security.impl.CachingDataSecurityTokens;
+import org.geotools.util.logging.Logging;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.security.core.Authentication;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * Adapts a {@link DataAccess} to make its methods take an {@link Authentication} instance instead of a simple {@link String} where a user is needed;
  * this enables the caching of method results on a per user session basis.</p>
@@ -21,15 +42,84 @@ import org.springframework.security.core.Authentication;
  * The cache configuration is annotation-driven and requires the class be instantiated as a Spring bean to function.
  * </p>
  * 
+ * <p>
+ * Reloading permissions in the background is delegated to a {@link PermissionRefresher}, revalidating them by version stamp to a
+ * {@link PermissionRevalidator}.
+ * </p>
+ * 
  * @author Stefano Costa, GeoSolutions
  */
 public class CachingDataAccessAdapter implements EvictableCache {
 
     int countCachedMethodCalls = 0;
 
+    private static final Logger LOGGER = Logging.getLogger(CachingDataAccessAdapter.class);
+
+    /** Coalesces concurrent permission lookups of the same user. */
+    final SingleFlight<String, PermissionSet> permissionLoads = new SingleFlight<String, PermissionSet>();
+
+    /** Whether refresh-ahead mode is enabled. */
+    volatile boolean refreshAhead = false;
+
+    /** Time to live of preloaded permissions which have not been used yet, in seconds. */
+    public static final long PRELOAD_TTL = 60;
+
+    /** Preloaded permissions by user name, used at most once (see {@link #preloadPermissions(Collection)}). */
+    final Cache<String, PermissionSet> preloadedPermissions = CacheBuilder.newBuilder()
+            .maximumSize(100000).expireAfterWrite(PRELOAD_TTL, TimeUnit.SECONDS).build();
+
+    /** Maximum number of recently active users tracked. */
+    static final int MAX_RECENT_USERS = 1000;
+
+    /** Time of the last permission lookup, by user name. */
+    final Cache<String, Long> recentUsers = CacheBuilder.newBuilder().maximumSize(MAX_RECENT_USERS)
+            .build();
+
+    /** Whether permissions have been looked up by a cache key other than the user name, i.e. key authentication is used. */
+    volatile boolean keyAuthentication;
+
+    /** Maximum number of attempts to load permissions which are not outdated by a concurrent eviction. */
+    static final int MAX_LOAD_ATTEMPTS = 3;
+
+    /** Evictions, so that permissions loaded before an eviction are not kept past it. */
+    final EvictionGenerations generations = new EvictionGenerations();
+
+    /**
+     * User names by cache key, for the keys which are not the user name (see {@link CacheHelper#getCacheKey(Authentication)}); kept as long as
+     * the permissions fetched with the key can be revalidated.
+     */
+    final Cache<String, String> userNamesByKey = CacheBuilder.newBuilder().maximumSize(10000)
+            .expireAfterWrite(PermissionRevalidator.REVALIDATION_TTL, TimeUnit.SECONDS).build();
+
+    /**
+     * The cache keys which are not the user name, by user name, so that all the entries of a user can be evicted by user name (see
+     * {@link #clearCacheEntry(String)}); kept as long as the user keeps missing the cache.
+     */
+    final Cache<String, Set<String>> keysByUserName = CacheBuilder.newBuilder().maximumSize(10000)
+            .expireAfterAccess(PermissionRevalidator.REVALIDATION_TTL, TimeUnit.SECONDS).build();
+
+    /** Revalidates the permissions last fetched. */
+    final PermissionRevalidator revalidator = new PermissionRevalidator(generations);
+
+    /** Reloads permissions in the background, in refresh-ahead mode. */
+    final PermissionRefresher refresher = new PermissionRefresher(generations,
+            new PermissionRefresher.Loader() {
+                @Override
+                public PermissionSet load(String userName, long startGeneration)
+                        throws IOException {
+                    return loadPermissions(userName, startGeneration);
+                }
+            });
+
     /** The factory used to obtain the data access instance. */
     DataAccessProvider provider;
 
+    /** The data security tokens derived from the cached permissions, if any. */
+    CachingDataSecurityTokens dataSecurityTokens;
+
+    /** The permissions cache, used to evict the entries which are not keyed by user name ({@code null} if not known). */
+    volatile org.springframework.cache.Cache permissionsCache;
+
     /**
      * @return the provider
      */
@@ -44,9 +134,63 @@ public class CachingDataAccessAdapter implements EvictableCache {
         this.provider = provider;
     }
 
+    /**
+     * Sets the data security tokens cache, whose entries are evicted whenever the permissions they derive from are loaded again.
+     * 
+     * @param dataSecurityTokens the data security tokens cache
+     */
+    public void setDataSecurityTokens(CachingDataSecurityTokens dataSecurityTokens) {
+        this.dataSecurityTokens = dataSecurityTokens;
+        refresher.dataSecurityTokens = dataSecurityTokens;
+    }
+
+    /**
+     * Sets the cache manager holding the permissions cache, whose time to live drives refresh-ahead mode and where the permissions reloaded in
+     * the background are written back; needed to evict by user name the entries keyed by authentication key.
+     * 
+     * @param cacheManager the cache manager
+     */
+    public void setCacheManager(CacheManager cacheManager) {
+        org.springframework.cache.Cache cache = (cacheManager != null) ? cacheManager
+                .getCache(PERMISSIONS_CACHE) : null;
+        if (cache == null || !(cache.getNativeCache() instanceof Ehcache)) {
+            LOGGER.warning("Permissions cache not found, permissions will only be reloaded ahead "
+                    + "on cache misses");
+            this.permissionsCache = null;
+            refresher.permissionsCache = null;
+            return;
+        }
+        this.permissionsCache = cache;
+        refresher.permissionsCache = (Ehcache) cache.getNativeCache();
+    }
+
     /**
      * Retrieves user permission from the database and caches the result.
      * 
+     * <p>
+     * Permission sets are canonical, so cache entries of users sharing the same permissions reference the same instance.
+     * </p>
+     * 
+     * <p>
+     * Concurrent cache misses for the same user name (e.g. all the tile requests issued after the user's entry expired) share a single lookup.
+     * </p>
+     * 
+     * <p>
+     * In {@link #setRefreshAhead(boolean) refresh-ahead} mode, a cache miss is served with the permissions last loaded for the same user name, if
+     * they are not older than the {@link #setMaxStaleness(long) maximum staleness}, and the permissions are reloaded in the background; cache
+     * hits are reloaded ahead of expiration by {@link #refreshIfDue(Authentication)}. See {@link PermissionRefresher} for the staleness bounds.
+     * </p>
+     * 
+     * <p>
+     * If the data access supports version stamps, permissions fetched within the last {@value PermissionRevalidator#REVALIDATION_TTL} seconds
+     * are revalidated by checking their stamp, and only fetched again if it changed.
+     * </p>
+     * 
+     * <p>
+     * Permissions loaded before a concurrent eviction of the user (see {@link #clearCacheEntry(String)}) are loaded again, so that they are not
+     * cached past their revocation.
+     * </p>
+     * 
      * @see DataAccess#getUserPermissions(String)
      * 
      * @param user the user
@@ -54,18 +198,250 @@ public class CachingDataAccessAdapter implements EvictableCache {
      * @throws IOException
      */
     @Cacheable(value = PERMISSIONS_CACHE, key = "T(org.geoserver.extension.pluggableaccessmanager.security.impl.CacheHelper).getCacheKey(#user)")
-    public List<String> getUserPermissions(Authentication user) throws IOException {
+    public PermissionSet getUserPermissions(Authentication user) throws IOException {
         if (user == null) {
-            return Collections.emptyList();
+            return PermissionSet.EMPTY;
         }
 
         checkDataAccessProvider();
 
         this.countCachedMethodCalls++;
-        return provider.getDataAccess().getUserPermissions(user.getName());
+        String userName = user.getName();
+        recentUsers.put(userName, System.currentTimeMillis());
+        String key = CacheHelper.getCacheKey(user);
+        if (!key.equals(userName)) {
+            userNamesByKey.put(key, userName);
+            Set<String> keys = keysByUserName.getIfPresent(userName);
+            if (keys == null) {
+                keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                Set<String> existing = keysByUserName.asMap().putIfAbsent(userName, keys);
+                if (existing != null) {
+                    keys = existing;
+                }
+            }
+            keys.add(key);
+            keyAuthentication = true;
+        }
+        if (dataSecurityTokens != null) {
+            // the tokens computed so far derive from the permissions being replaced
+            dataSecurityTokens.evict(key);
+        }
+        for (int attempt = 1;; attempt++) {
+            long startGeneration = generations.current();
+            PermissionSet permissions = lookupPermissions(key, userName, startGeneration);
+            // the result is about to be cached, it must not predate an eviction
+            if (!generations.isEvictedSince(userName, startGeneration)) {
+                return permissions;
+            } else if (attempt == MAX_LOAD_ATTEMPTS) {
+                LOGGER.warning("Permissions of user " + userName
+                        + " keep being evicted while loading, caching them anyway");
+                return permissions;
+            }
+        }
+    }
+
+    private PermissionSet lookupPermissions(String key, String userName, long startGeneration)
+            throws IOException {
+        if (refreshAhead) {
+            PermissionSet recent = refresher.getRecent(key, userName);
+            if (recent != null) {
+                return recent;
+            }
+        }
+        PermissionSet preloaded = preloadedPermissions.asMap().remove(userName);
+        if (preloaded != null) {
+            return preloaded;
+        }
+        return loadPermissions(userName, startGeneration);
+    }
+
+    /**
+     * In {@link #setRefreshAhead(boolean) refresh-ahead} mode, reloads the cached permissions of the specified user in the background if they
+     * have been cached for longer than the {@link #setRefreshAheadFraction(double) refresh-ahead fraction} of the cache time to live; to be
+     * called on each permission lookup, as cache hits do not reach {@link #getUserPermissions(Authentication)}.
+     * 
+     * @param user the user
+     */
+    public void refreshIfDue(Authentication user) {
+        if (refreshAhead && user != null && provider != null) {
+            refresher.refreshIfDue(CacheHelper.getCacheKey(user), user.getName());
+        }
+    }
+
+    /**
+     * Loads the permissions of the specified users with a bulk query (see {@link DataAccess#getUserPermissions(Collection)}), so that the
+     * following cache misses for the same users are served without querying the database.
+     * 
+     * <p>
+     * Preloaded permissions are served once, within {@value #PRELOAD_TTL} seconds, and are then cached as usual; useful to warm up the cache
+     * after a restart or a full eviction.
+     * </p>
+     * 
+     * @param userNames the user names
+     * @return the loaded permissions, by user name
+     * @throws IOException
+     */
+    public Map<String, PermissionSet> preloadPermissions(Collection<String> userNames)
+            throws IOException {
+        checkDataAccessProvider();
+
+        long startGeneration = generations.current();
+        Map<String, PermissionSet> permissions = provider.getDataAccess().getUserPermissions(
+                userNames);
+        for (Map.Entry<String, PermissionSet> entry : permissions.entrySet()) {
+            PermissionSet userPermissions = PermissionSet.of(entry.getValue());
+            generations.publish(preloadedPermissions, entry.getKey(), userPermissions,
+                    startGeneration);
+            if (refreshAhead) {
+                refresher.remember(entry.getKey(), userPermissions, startGeneration);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Returns the names of the users whose permissions have been looked up recently, most recent first; useful to warm up the cache after a
+     * restart (see {@link #preloadPermissions(Collection)}).
+     * 
+     * <p>
+     * At most {@value #MAX_RECENT_USERS} users are tracked. Lookups served by the cache are not tracked, but active users miss the cache at least
+     * once per time to live.
+     * </p>
+     * 
+     * @return the user names
+     */
+    public List<String> getRecentUsers() {
+        final Map<String, Long> lastLookups = new HashMap<String, Long>(
+                recentUsers.asMap());
+        List<String> userNames = new ArrayList<String>(lastLookups.keySet());
+        Collections.sort(userNames, new Comparator<String>() {
+            @Override
+            public int compare(String u1, String u2) {
+                return lastLookups.get(u2).compareTo(lastLookups.get(u1));
+            }
+        });
+        return userNames;
+    }
+
+    /**
+     * Returns whether permissions have been looked up by a cache key other than the user name since startup, i.e. key authentication is used
+     * (see {@link CacheHelper#getCacheKey(Authentication)}); if so, permissions cached under the user name are never looked up.
+     * 
+     * @return {@code true} if key authentication is used
+     */
+    public boolean isKeyAuthenticationUsed() {
+        return keyAuthentication;
+    }
+
+    /**
+     * Loads the permissions of the specified user, joining the load in flight for the same user if any; the permissions are not kept for
+     * refresh-ahead if the user has been evicted since the specified generation.
+     */
+    PermissionSet loadPermissions(final String userName, long startGeneration) throws IOException {
+        PermissionSet permissions = permissionLoads.load(userName, new Callable<PermissionSet>() {
+            @Override
+            public PermissionSet call() throws IOException {
+                return revalidator.fetch(provider.getDataAccess(), userName);
+            }
+        });
+        if (refreshAhead) {
+            refresher.remember(userName, permissions, startGeneration);
+        }
+        return permissions;
+    }
+
+    /**
+     * @return {@code true} if refresh-ahead mode is enabled
+     */
+    public boolean isRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Enables or disables refresh-ahead mode (disabled by default).
+     * 
+     * @param refreshAhead {@code true} to reload permissions in the background, serving the cached or recent ones meanwhile
+     */
+    public void setRefreshAhead(boolean refreshAhead) {
+        this.refreshAhead = refreshAhead;
+        if (!refreshAhead) {
+            refresher.evictAll();
+        }
+    }
+
+    /**
+     * @return the maximum staleness of the permissions served on a cache miss in refresh-ahead mode, in seconds
+     */
+    public long getMaxStaleness() {
+        return refresher.maxStaleness;
+    }
+
+    /**
+     * Sets the maximum age of the permissions served from a cache miss in refresh-ahead mode; the permissions are then cached as usual, so the
+     * staleness of the permissions served is bounded by the maximum staleness plus the cache time to live, not by the maximum staleness alone.
+     * 
+     * @param maxStaleness the maximum staleness, in seconds
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        refresher.setMaxStaleness(maxStaleness);
+    }
+
+    /**
+     * @return the fraction of the cache time to live after which cached permissions are reloaded in refresh-ahead mode
+     */
+    public double getRefreshAheadFraction() {
+        return refresher.refreshAheadFraction;
+    }
+
+    /**
+     * Sets the fraction of the cache time to live after which cached permissions are reloaded in the background in refresh-ahead mode, e.g.
+     * {@code 0.75} to reload permissions cached for 10 seconds after 7.5 seconds.
+     * 
+     * @param refreshAheadFraction the fraction, between {@code 0} and {@code 1} (exclusive)
+     */
+    public void setRefreshAheadFraction(double refreshAheadFraction) {
+        refresher.setRefreshAheadFraction(refreshAheadFraction);
+    }
+
+    /**
+     * @return the number of threads reloading permissions in refresh-ahead mode
+     */
+    public int getRefreshThreads() {
+        return refresher.refreshThreads;
+    }
+
+    /**
+     * Sets the number of threads reloading permissions in refresh-ahead mode; only effective before the first reload.
+     * 
+     * @param refreshThreads the number of threads
+     */
+    public void setRefreshThreads(int refreshThreads) {
+        refresher.setRefreshThreads(refreshThreads);
+    }
+
+    /**
+     * @return the number of permission sets reloaded in the background
+     */
+    public long getRefreshCount() {
+        return refresher.getRefreshCount();
+    }
+
+    /**
+     * @return the number of permission lookups served by revalidating the permissions last fetched, instead of fetching them again
+     */
+    public long getRevalidatedCount() {
+        return revalidator.getRevalidatedCount();
+    }
+
+    /**
+     * @return the number of permission lookups which were coalesced with a concurrent lookup of the same user
+     */
+    public long getCoalescedLoadCount() {
+        return permissionLoads.getCoalescedCount();
     }
 
     public void dispose() throws IOException {
+        refresher.dispose();
         checkDataAccessProvider();
 
         provider.getDataAccess().dispose();
@@ -94,17 +470,70 @@ public class CachingDataAccessAdapter implements EvictableCache {
         }
     }
 
+    /**
+     * Evicts the user's permissions, along with the data security tokens derived from them.
+     * 
+     * <p>
+     * The key may either be a cache key or a user name: in the latter case, the entries cached under the authentication keys the user looked
+     * up permissions with are evicted too.
+     * </p>
+     */
     @Override
-    @CacheEvict(value = PERMISSIONS_CACHE, key="#key")
+    @CacheEvict(value = { PERMISSIONS_CACHE, DATA_SECURITY_TOKENS_CACHE }, key="#key")
     public boolean clearCacheEntry(String key) {
-        // no-op, just a placeholder to trigger cache eviction
+        // the key is the user name, unless key authentication is used
+        String userName = userNamesByKey.getIfPresent(key);
+        evictUser(key);
+        if (userName != null) {
+            evictUser(userName);
+        }
+        Set<String> keys = keysByUserName.asMap().remove(key);
+        if (keys != null) {
+            for (String userKey : keys) {
+                evictUser(userKey);
+                evictCached(userKey);
+            }
+        }
         return true;
     }
 
+    /**
+     * Evicts the permissions cached under the specified key, along with the data security tokens derived from them.
+     */
+    private void evictCached(String key) {
+        org.springframework.cache.Cache cache = permissionsCache;
+        if (cache != null) {
+            cache.evict(key);
+        }
+        if (dataSecurityTokens != null) {
+            dataSecurityTokens.evict(key);
+        }
+    }
+
+    /**
+     * Evicts the permissions kept by user name, for refresh-ahead, preloading and revalidation.
+     */
+    private void evictUser(String userName) {
+        // following lookups must not join a load in flight, which may predate the change
+        permissionLoads.forget(userName);
+        generations.evict(userName);
+        refresher.evict(userName);
+        preloadedPermissions.invalidate(userName);
+        revalidator.evict(userName);
+    }
+
+    /**
+     * Evicts all permissions, along with the data security tokens derived from them.
+     */
     @Override
-    @CacheEvict(value = PERMISSIONS_CACHE, allEntries=true)
+    @CacheEvict(value = { PERMISSIONS_CACHE, DATA_SECURITY_TOKENS_CACHE }, allEntries=true)
     public boolean clearAllCacheEntries() {
-        // no-op, just a placeholder to trigger cache eviction
+        permissionLoads.forgetAll();
+        keysByUserName.invalidateAll();
+        generations.evictAll();
+        refresher.evictAll();
+        preloadedPermissions.invalidateAll();
+        revalidator.evictAll();
         return true;
     }
 
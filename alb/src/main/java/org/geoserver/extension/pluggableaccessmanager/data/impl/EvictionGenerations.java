@@ -0,0 +1,80 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Tracks the evictions of the cached permissions, so that permissions loaded before an eviction are not kept past it.
+ *
+ * <p>
+ * Each eviction bumps a generation counter; loads capture the {@link #current() current} generation when starting, and their results are
+ * discarded if the user has been {@link #isEvictedSince(String, long) evicted since}.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ */
+final class EvictionGenerations {
+
+    /** How long the generation of an evicted user is kept, in seconds; must exceed the duration of any permission load. */
+    static final long EVICTION_TTL = 600;
+
+    /** Incremented on each eviction. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** The generation of the last eviction, by user name or cache key. */
+    private final Cache<String, Long> evictedGenerations = CacheBuilder.newBuilder()
+            .expireAfterWrite(EVICTION_TTL, TimeUnit.SECONDS).build();
+
+    /** The generation of the last eviction of all entries. */
+    private volatile long allEvictedGeneration;
+
+    /**
+     * @return the current generation, to be captured by loads when starting
+     */
+    long current() {
+        return generation.get();
+    }
+
+    /**
+     * Records the eviction of the specified user name or cache key.
+     */
+    void evict(String userName) {
+        evictedGenerations.put(userName, generation.incrementAndGet());
+    }
+
+    /**
+     * Records the eviction of all entries.
+     */
+    void evictAll() {
+        allEvictedGeneration = generation.incrementAndGet();
+    }
+
+    /**
+     * @return {@code true} if the specified user name or cache key has been evicted since the specified generation
+     */
+    boolean isEvictedSince(String userName, long startGeneration) {
+        if (allEvictedGeneration > startGeneration) {
+            return true;
+        }
+        Long evicted = evictedGenerations.getIfPresent(userName);
+        return evicted != null && evicted > startGeneration;
+    }
+
+    /**
+     * Puts the value loaded for the specified user in the cache, unless the user has been evicted since the load started.
+     */
+    <V> void publish(Cache<String, V> cache, String userName, V value, long startGeneration) {
+        if (isEvictedSince(userName, startGeneration)) {
+            return;
+        }
+        cache.put(userName, value);
+        // evictions bump the generation before invalidating, check again in case one happened in between
+        if (isEvictedSince(userName, startGeneration)) {
+            cache.asMap().remove(userName, value);
+        }
+    }
+
+}
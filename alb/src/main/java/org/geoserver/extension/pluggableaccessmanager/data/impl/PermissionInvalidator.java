@@ -0,0 +1,184 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.EvictableCache;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Periodically polls a {@link PermissionChangeSource} and evicts the cache entries of the users whose permissions changed, so that grant
+ * changes are seen within the polling interval, regardless of the cache expiration times.
+ *
+ * <p>
+ * Entries are evicted by user name (see {@link EvictableCache#clearCacheEntry(String)}); caches keying their entries otherwise, e.g. by
+ * authentication key, are expected to evict all the entries of the user. If the source reports that any change may have been missed, all
+ * entries are evicted.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class PermissionInvalidator implements InitializingBean, DisposableBean {
+
+    private static final Logger LOGGER = Logging.getLogger(PermissionInvalidator.class);
+
+    /** Default polling interval, in seconds. */
+    static final long DEFAULT_INTERVAL = 5;
+
+    private final PermissionChangeSource source;
+
+    private final List<EvictableCache> caches;
+
+    private long interval = DEFAULT_INTERVAL;
+
+    private boolean enabled = true;
+
+    private ScheduledExecutorService scheduler;
+
+    /** Whether the source has been polled successfully at least once. */
+    private boolean started;
+
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final AtomicLong fullEvictionCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param source the source of permission changes
+     * @param caches the caches to evict entries from
+     */
+    public PermissionInvalidator(PermissionChangeSource source, List<EvictableCache> caches) {
+        if (source == null) {
+            throw new IllegalArgumentException("Permission change source cannot be null");
+        }
+        if (caches == null) {
+            throw new IllegalArgumentException("Caches cannot be null");
+        }
+        this.source = source;
+        this.caches = new ArrayList<EvictableCache>(caches);
+    }
+
+    /**
+     * @return the polling interval, in seconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @param interval the polling interval, in seconds; only effective before the bean is initialized
+     */
+    public void setInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid polling interval: " + interval);
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * @return {@code true} if the source is polled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled {@code false} to never poll the source; only effective before the bean is initialized
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the number of entries evicted because the permissions of their user changed
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * @return the number of times all entries were evicted because changes may have been missed
+     */
+    public long getFullEvictionCount() {
+        return fullEvictionCount.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "permissions-invalidator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Polls the source once and evicts the entries of the users whose permissions changed.
+     */
+    void poll() {
+        Set<String> users;
+        try {
+            users = source.poll();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not poll permission changes", e);
+            return;
+        }
+        if (users == null) {
+            // nothing can be stale yet on the first poll
+            if (started) {
+                fullEvictionCount.incrementAndGet();
+                for (EvictableCache cache : caches) {
+                    cache.clearAllCacheEntries();
+                }
+            }
+        } else {
+            for (String user : users) {
+                for (EvictableCache cache : caches) {
+                    cache.clearCacheEntry(user);
+                }
+            }
+            evictedCount.addAndGet(users.size());
+        }
+        started = true;
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(interval, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        source.dispose();
+    }
+
+}
@@ -0,0 +1,276 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geoserver.extension.pluggableaccessmanager.security.impl.CachingDataSecurityTokens;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Reloads cached permissions in the background, for the refresh-ahead mode of {@link CachingDataAccessAdapter}.
+ *
+ * <p>
+ * Permissions cached for longer than the {@link #setRefreshAheadFraction(double) refresh-ahead fraction} of the permissions cache time to live
+ * are reloaded by a bounded executor when {@link #refreshIfDue(String, String) accessed}, while the cached value keeps being served; the
+ * reloaded permissions are written back to the cache, so active users do not miss it.
+ * </p>
+ *
+ * <p>
+ * On a cache miss, the permissions last loaded for the same user are served, if not older than the {@link #setMaxStaleness(long) maximum
+ * staleness}, and reloaded in the background as well. Permissions reloaded ahead of expiration are at most one time to live old; permissions
+ * served on a miss may be up to the maximum staleness plus the time to live old, if the reload fails or the executor queue is full.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ */
+final class PermissionRefresher {
+
+    private static final Logger LOGGER = Logging.getLogger(PermissionRefresher.class);
+
+    /** Default maximum staleness of the permissions served on a cache miss, in seconds. */
+    static final long DEFAULT_MAX_STALENESS = 60;
+
+    /** Default fraction of the time to live after which cached permissions are reloaded. */
+    static final double DEFAULT_REFRESH_AHEAD_FRACTION = 0.75;
+
+    /** Default number of threads reloading permissions. */
+    static final int DEFAULT_REFRESH_THREADS = 2;
+
+    /** Maximum number of pending background reloads; further reloads are skipped until the queue drains. */
+    static final int REFRESH_QUEUE_SIZE = 100;
+
+    /** Loads the permissions of a user, discarding them if the user is evicted since the specified generation. */
+    interface Loader {
+        PermissionSet load(String userName, long startGeneration) throws IOException;
+    }
+
+    private final EvictionGenerations generations;
+
+    private final Loader loader;
+
+    /** Maximum staleness of the permissions served on a cache miss, in seconds. */
+    volatile long maxStaleness = DEFAULT_MAX_STALENESS;
+
+    /** Fraction of the time to live after which cached permissions are reloaded. */
+    volatile double refreshAheadFraction = DEFAULT_REFRESH_AHEAD_FRACTION;
+
+    /** Number of threads reloading permissions. */
+    volatile int refreshThreads = DEFAULT_REFRESH_THREADS;
+
+    /** Last loaded permissions by user name, served on a cache miss. */
+    volatile Cache<String, PermissionSet> recentPermissions = buildRecentPermissions(DEFAULT_MAX_STALENESS);
+
+    /** The permissions cache, reloaded permissions are written back to it ({@code null} if not known). */
+    volatile Ehcache permissionsCache;
+
+    /** The data security tokens derived from the cached permissions, if any. */
+    volatile CachingDataSecurityTokens dataSecurityTokens;
+
+    /** Cache keys whose permissions are being reloaded. */
+    private final Set<String> refreshing = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Executor of the background reloads, created on first use. */
+    private ThreadPoolExecutor refreshExecutor;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    PermissionRefresher(EvictionGenerations generations, Loader loader) {
+        this.generations = generations;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the permissions last loaded for the specified user, scheduling a reload for the specified cache key if any.
+     *
+     * @return the recent permissions, or {@code null} if none were loaded within the maximum staleness
+     */
+    PermissionSet getRecent(String key, String userName) {
+        PermissionSet recent = recentPermissions.getIfPresent(userName);
+        if (recent != null) {
+            scheduleRefresh(key, userName);
+        }
+        return recent;
+    }
+
+    /**
+     * Keeps the permissions loaded for the specified user, to be served on a following cache miss.
+     */
+    void remember(String userName, PermissionSet permissions, long startGeneration) {
+        generations.publish(recentPermissions, userName, permissions, startGeneration);
+    }
+
+    /**
+     * Schedules a reload of the permissions cached under the specified key, if they have been cached for longer than the refresh-ahead fraction
+     * of the time to live.
+     */
+    void refreshIfDue(String key, String userName) {
+        Ehcache cache = permissionsCache;
+        if (cache == null) {
+            return;
+        }
+        CacheConfiguration config = cache.getCacheConfiguration();
+        long timeToLive = config.getTimeToLiveSeconds();
+        if (config.isEternal() || timeToLive <= 0) {
+            return;
+        }
+        Element element = cache.getQuiet(key);
+        if (element == null || element.isExpired()) {
+            // the next lookup misses the cache and loads them
+            return;
+        }
+        long age = System.currentTimeMillis() - element.getCreationTime();
+        if (age >= refreshAheadFraction * timeToLive * 1000) {
+            scheduleRefresh(key, userName);
+        }
+    }
+
+    /**
+     * Reloads the permissions of the specified user in the background and writes them back under the specified cache key, unless a reload is
+     * already pending for the key or the executor queue is full.
+     */
+    void scheduleRefresh(final String key, final String userName) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long startGeneration = generations.current();
+                        PermissionSet permissions = loader.load(userName, startGeneration);
+                        writeBack(key, userName, permissions, startGeneration);
+                        refreshCount.incrementAndGet();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to reload the permissions of user "
+                                + userName, e);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // queue full or shut down, the cached permissions will be served until the next attempt
+            refreshing.remove(key);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Skipped background reload of the permissions of user " + userName);
+            }
+        }
+    }
+
+    /**
+     * Writes the reloaded permissions back to the permissions cache, unless the key or the user has been evicted since the reload started.
+     */
+    void writeBack(String key, String userName, PermissionSet permissions, long startGeneration) {
+        Ehcache cache = permissionsCache;
+        if (cache == null || isEvictedSince(key, userName, startGeneration)) {
+            return;
+        }
+        Element previous = cache.getQuiet(key);
+        cache.put(new Element(key, permissions));
+        // evictions bump the generation before evicting, check again in case one happened in between
+        if (isEvictedSince(key, userName, startGeneration)) {
+            cache.remove(key);
+            return;
+        }
+        CachingDataSecurityTokens tokens = dataSecurityTokens;
+        if (tokens != null
+                && (previous == null || !permissions.equals(previous.getObjectValue()))) {
+            // the tokens computed so far derive from the permissions being replaced
+            tokens.evict(key);
+        }
+    }
+
+    private boolean isEvictedSince(String key, String userName, long startGeneration) {
+        return generations.isEvictedSince(key, startGeneration)
+                || generations.isEvictedSince(userName, startGeneration);
+    }
+
+    synchronized ThreadPoolExecutor getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "permissions-refresh-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            refreshExecutor.allowCoreThreadTimeOut(true);
+        }
+        return refreshExecutor;
+    }
+
+    private static Cache<String, PermissionSet> buildRecentPermissions(long maxStaleness) {
+        return CacheBuilder.newBuilder().maximumSize(10000)
+                .expireAfterWrite(maxStaleness, TimeUnit.SECONDS).build();
+    }
+
+    void setMaxStaleness(long maxStaleness) {
+        if (maxStaleness <= 0) {
+            throw new IllegalArgumentException("Invalid maximum staleness: " + maxStaleness);
+        }
+        this.maxStaleness = maxStaleness;
+        this.recentPermissions = buildRecentPermissions(maxStaleness);
+    }
+
+    void setRefreshAheadFraction(double refreshAheadFraction) {
+        if (!(refreshAheadFraction > 0 && refreshAheadFraction < 1)) {
+            throw new IllegalArgumentException("Invalid refresh-ahead fraction: "
+                    + refreshAheadFraction);
+        }
+        this.refreshAheadFraction = refreshAheadFraction;
+    }
+
+    void setRefreshThreads(int refreshThreads) {
+        if (refreshThreads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads: " + refreshThreads);
+        }
+        this.refreshThreads = refreshThreads;
+    }
+
+    long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    void evict(String userName) {
+        recentPermissions.invalidate(userName);
+    }
+
+    void evictAll() {
+        recentPermissions.invalidateAll();
+    }
+
+    synchronized void dispose() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+}
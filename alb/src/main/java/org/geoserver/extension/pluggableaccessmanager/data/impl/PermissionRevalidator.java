@@ -0,0 +1,92 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Fetches user permissions, unless the permissions last fetched are still current according to their version stamp (see
+ * {@link DataAccess#getPermissionsVersion(String)}).
+ *
+ * @author Stefano Costa, GeoSolutions
+ */
+final class PermissionRevalidator {
+
+    /** How long the permissions last fetched are kept for revalidation, in seconds. */
+    static final long REVALIDATION_TTL = 3600;
+
+    private final EvictionGenerations generations;
+
+    /** Permissions last fetched along with their version stamp, by user name; only filled if the data access supports versioning. */
+    final Cache<String, VersionedPermissions> versionedPermissions = CacheBuilder.newBuilder()
+            .maximumSize(10000).expireAfterWrite(REVALIDATION_TTL, TimeUnit.SECONDS).build();
+
+    private final AtomicLong revalidatedCount = new AtomicLong();
+
+    PermissionRevalidator(EvictionGenerations generations) {
+        this.generations = generations;
+    }
+
+    /**
+     * Fetches the permissions of the specified user, or returns the permissions last fetched if their version stamp did not change.
+     *
+     * <p>
+     * The stamp is read before the permissions, so that a change happening in between is detected by the next revalidation.
+     * </p>
+     */
+    PermissionSet fetch(DataAccess dataAccess, String userName) throws IOException {
+        long startGeneration = generations.current();
+        String version = dataAccess.getPermissionsVersion(userName);
+        if (version != null) {
+            VersionedPermissions versioned = versionedPermissions.getIfPresent(userName);
+            if (versioned != null && versioned.version.equals(version)) {
+                revalidatedCount.incrementAndGet();
+                return versioned.permissions;
+            }
+        }
+        // null safe
+        PermissionSet permissions = PermissionSet.of(dataAccess.getUserPermissions(userName));
+        if (version != null) {
+            generations.publish(versionedPermissions, userName, new VersionedPermissions(version,
+                    permissions), startGeneration);
+        }
+        return permissions;
+    }
+
+    void evict(String userName) {
+        versionedPermissions.invalidate(userName);
+    }
+
+    void evictAll() {
+        versionedPermissions.invalidateAll();
+    }
+
+    /**
+     * @return the number of fetches served by revalidating the permissions last fetched
+     */
+    long getRevalidatedCount() {
+        return revalidatedCount.get();
+    }
+
+    /**
+     * Permissions along with their version stamp.
+     */
+    static final class VersionedPermissions {
+
+        final String version;
+
+        final PermissionSet permissions;
+
+        VersionedPermissions(String version, PermissionSet permissions) {
+            this.version = version;
+            this.permissions = permissions;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key: while a load is in flight, other callers asking for the same key wait for it and share its result,
+ * instead of loading the value again.
+ *
+ * <p>
+ * Meant to be used behind a cache, to prevent all the requests missing an expired entry from hitting the underlying resource at once. Results
+ * are not retained once the load completes: caching them is up to the caller.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Loads the value of the specified key, or waits for the load already in flight for the same key.
+     *
+     * @param key the key
+     * @param loader loads the value; only invoked if no load is in flight for the key
+     * @return the loaded value
+     * @throws IOException if the load fails, or the current thread is interrupted while waiting
+     */
+    public V load(K key, Callable<V> loader) throws IOException {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            loadCount.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            existing = task;
+        } else {
+            coalescedCount.incrementAndGet();
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted while loading "
+                    + key);
+            ie.initCause(e);
+            throw ie;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to load " + key, cause);
+        }
+    }
+
+    /**
+     * Forgets the load in flight for the specified key, if any: callers already waiting for it still get its result, following callers perform a
+     * new load. Useful when the value being loaded is known to be outdated.
+     *
+     * @param key the key
+     */
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Forgets all the loads in flight (see {@link #forget(Object)}).
+     */
+    public void forgetAll() {
+        inFlight.clear();
+    }
+
+    /**
+     * @return the number of loads actually performed
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return the number of calls which waited for a load already in flight, instead of performing their own
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+}
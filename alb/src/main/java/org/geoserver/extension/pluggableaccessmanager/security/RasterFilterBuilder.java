@@ -5,7 +5,6 @@ import java.io.IOException;
 import org.geoserver.catalog.ResourceInfo;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.Filter;
-import org.springframework.security.core.Authentication;
 
 import com.vividsolutions.jts.geom.MultiPolygon;
 
@@ -21,17 +20,22 @@ public interface RasterFilterBuilder {
      * Constructs a MultiPolygon geometry that represents the accessible area of the specified resource.
      * 
      * <p>
-     * The resulting MultiPolygon is built by combining all the Polygon and MultiPolygon geometries of the selected features in the specified filter layer.
+     * The resulting MultiPolygon is built by combining all the Polygon and MultiPolygon geometries of the selected features in the specified filter layer,
+     * and is expressed in the CRS of the resource.
      * </p>
      * 
-     * @param user the user
+     * <p>
+     * The result only depends on the specified key: implementations may return the same area for any call made with an equal key.
+     * </p>
+     * 
+     * @param key identifies the raster filter; must be consistent with the other arguments
      * @param resource the resource
      * @param filterLayerName the layer containing the geometries used to construct the filter 
      * @param filterLayerFilter only the features matching this filter will be used to construct the raster filter
      * @return a MultiPolygon representing the accessible area
      * @throws IOException
      */
-    public MultiPolygon buildRasterFilter(Authentication user, ResourceInfo resource,
+    public MultiPolygon buildRasterFilter(RasterFilterKey key, ResourceInfo resource,
             Name filterLayerName, Filter filterLayerFilter) throws IOException;
 
 }
@@ -0,0 +1,330 @@
+package org.geoserver.extension.pluggableaccessmanager.security;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.type.Name;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Identifies a raster filter, i.e. the accessible area computed by a {@link RasterFilterBuilder}.
+ *
+ * <p>
+ * A raster filter only depends on the permissions of the user (which determine the features selected in the mask layer), on the mask layer, on the
+ * filter applied to it, on the way the selected geometries are post-processed, on the bounds the selection is restricted to and on the CRS the
+ * area is expressed in. Users which have been granted the same permissions thus share the same raster filters, for any resource having the same
+ * bounds and CRS.
+ * </p>
+ *
+ * <p>
+ * Bounds are part of the key only when the selection is restricted to them: an area read within the bounds of a resource is incomplete for any
+ * resource extending beyond them. Keys built without bounds are shared by all the resources having the same CRS.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public final class RasterFilterKey implements Serializable {
+
+    private static final long serialVersionUID = 2178357829362307744L;
+
+    private static final Logger LOGGER = Logging.getLogger(RasterFilterKey.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Maximum length of the strings read by {@link #read(DataInput)}, in bytes, to fail fast on corrupt input. */
+    static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    /** Sequence used to identify the CRS instances which cannot be formatted as WKT. */
+    private static final AtomicLong UNFORMATTABLE_CRS_IDS = new AtomicLong();
+
+    /**
+     * CRS identifiers by CRS instance (compared by identity), to avoid formatting a CRS on every request.
+     *
+     * <p>
+     * CRSs are identified by their WKT; those which cannot be formatted are identified by instance, so that they do not share areas with any
+     * other CRS and do not fail the request.
+     * </p>
+     */
+    private static final LoadingCache<CoordinateReferenceSystem, String> CRS_IDS = CacheBuilder
+            .newBuilder().weakKeys().build(new CacheLoader<CoordinateReferenceSystem, String>() {
+                @Override
+                public String load(CoordinateReferenceSystem crs) {
+                    try {
+                        return crs.toWKT();
+                    } catch (RuntimeException e) {
+                        if (LOGGER.isLoggable(Level.FINE)) {
+                            LOGGER.log(Level.FINE, "Could not format " + crs.getName()
+                                    + " as WKT, raster filters will be keyed by CRS instance", e);
+                        }
+                        return "#" + UNFORMATTABLE_CRS_IDS.incrementAndGet();
+                    }
+                }
+            });
+
+    private final String permissionsDigest;
+
+    private final String maskLayerName;
+
+    private final String filter;
+
+    private final String targetCrs;
+
+    private final double[] bounds;
+
+    private final String boundsCrs;
+
+    private final double simplifyTolerance;
+
+    private final double minArea;
+
+    private final int hash;
+
+    /**
+     * Constructor.
+     *
+     * @param permissions the user permissions
+     * @param maskLayerName the name of the mask layer
+     * @param filter a textual representation of the filter applied to the mask layer, e.g. the template it was built from
+     * @param targetCrs the CRS the area must be expressed in ({@code null} to keep the mask layer CRS)
+     */
+    public RasterFilterKey(PermissionSet permissions, Name maskLayerName, String filter,
+            CoordinateReferenceSystem targetCrs) {
+        this(permissions, maskLayerName, filter, targetCrs, null, 0, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param permissions the user permissions
+     * @param maskLayerName the name of the mask layer
+     * @param filter a textual representation of the filter applied to the mask layer, e.g. the template it was built from
+     * @param targetCrs the CRS the area must be expressed in ({@code null} to keep the mask layer CRS)
+     * @param bounds only the mask layer features intersecting these bounds are selected ({@code null} to select features regardless of their
+     *        location)
+     * @param simplifyTolerance the distance tolerance used to simplify the area, in mask layer CRS units ({@code 0} to disable simplification)
+     * @param minArea parts of the area smaller than this, in mask layer CRS units, are dropped ({@code 0} to keep all parts)
+     */
+    public RasterFilterKey(PermissionSet permissions, Name maskLayerName, String filter,
+            CoordinateReferenceSystem targetCrs, ReferencedEnvelope bounds,
+            double simplifyTolerance, double minArea) {
+        this(permissions.getDigest(), String.valueOf(maskLayerName), filter, crsId(targetCrs),
+                (bounds != null) ? new double[] { bounds.getMinX(), bounds.getMinY(),
+                        bounds.getMaxX(), bounds.getMaxY() } : null,
+                (bounds != null) ? crsId(bounds.getCoordinateReferenceSystem()) : null,
+                simplifyTolerance, minArea);
+    }
+
+    private RasterFilterKey(String permissionsDigest, String maskLayerName, String filter,
+            String targetCrs, double[] bounds, String boundsCrs, double simplifyTolerance,
+            double minArea) {
+        this.permissionsDigest = permissionsDigest;
+        this.maskLayerName = maskLayerName;
+        this.filter = filter;
+        this.targetCrs = targetCrs;
+        this.bounds = bounds;
+        this.boundsCrs = boundsCrs;
+        this.simplifyTolerance = simplifyTolerance;
+        this.minArea = minArea;
+        int result = permissionsDigest.hashCode();
+        result = 31 * result + maskLayerName.hashCode();
+        result = 31 * result + ((filter == null) ? 0 : filter.hashCode());
+        result = 31 * result + ((targetCrs == null) ? 0 : targetCrs.hashCode());
+        result = 31 * result + Arrays.hashCode(bounds);
+        result = 31 * result + ((boundsCrs == null) ? 0 : boundsCrs.hashCode());
+        long bits = Double.doubleToLongBits(simplifyTolerance);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        bits = Double.doubleToLongBits(minArea);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        this.hash = result;
+    }
+
+    private static String crsId(CoordinateReferenceSystem crs) {
+        return (crs != null) ? CRS_IDS.getUnchecked(crs) : null;
+    }
+
+    /**
+     * @return the digest of the user permissions
+     */
+    public String getPermissionsDigest() {
+        return permissionsDigest;
+    }
+
+    /**
+     * @return the name of the mask layer
+     */
+    public String getMaskLayerName() {
+        return maskLayerName;
+    }
+
+    /**
+     * @return the textual representation of the filter applied to the mask layer
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return {@code true} if the selection is restricted to the bounds of a resource
+     */
+    public boolean isBounded() {
+        return bounds != null;
+    }
+
+    /**
+     * @return the distance tolerance used to simplify the area ({@code 0} if simplification is disabled)
+     */
+    public double getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    /**
+     * @return the minimum area of the parts to keep ({@code 0} if all parts are kept)
+     */
+    public double getMinArea() {
+        return minArea;
+    }
+
+    /**
+     * Returns a key identifying the same area, expressed in the CRS of the mask layer.
+     *
+     * <p>
+     * Useful to share the area selected in the mask layer among resources having different CRSs.
+     * </p>
+     *
+     * @return the key of the area in the mask layer CRS
+     */
+    public RasterFilterKey getNativeKey() {
+        if (targetCrs == null) {
+            return this;
+        }
+        return new RasterFilterKey(permissionsDigest, maskLayerName, filter, null, bounds,
+                boundsCrs, simplifyTolerance, minArea);
+    }
+
+    /**
+     * Writes the key to the specified output, so that it can be read back by {@link #read(DataInput)}.
+     *
+     * @param out the output
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        writeString(out, permissionsDigest);
+        writeString(out, maskLayerName);
+        writeString(out, filter);
+        writeString(out, targetCrs);
+        out.writeBoolean(bounds != null);
+        if (bounds != null) {
+            for (double value : bounds) {
+                out.writeDouble(value);
+            }
+        }
+        writeString(out, boundsCrs);
+        out.writeDouble(simplifyTolerance);
+        out.writeDouble(minArea);
+    }
+
+    /**
+     * Reads a key written by {@link #write(DataOutput)}.
+     *
+     * @param in the input
+     * @return the key
+     * @throws IOException if the key cannot be read
+     */
+    public static RasterFilterKey read(DataInput in) throws IOException {
+        String permissionsDigest = readString(in);
+        String maskLayerName = readString(in);
+        String filter = readString(in);
+        String targetCrs = readString(in);
+        double[] bounds = null;
+        if (in.readBoolean()) {
+            bounds = new double[4];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = in.readDouble();
+            }
+        }
+        String boundsCrs = readString(in);
+        double simplifyTolerance = in.readDouble();
+        double minArea = in.readDouble();
+        if (permissionsDigest == null || maskLayerName == null) {
+            throw new IOException("Invalid raster filter key");
+        }
+        return new RasterFilterKey(permissionsDigest, maskLayerName, filter, targetCrs, bounds,
+                boundsCrs, simplifyTolerance, minArea);
+    }
+
+    /**
+     * Writes a nullable string of any length (unlike {@link DataOutput#writeUTF(String)}).
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RasterFilterKey)) {
+            return false;
+        }
+        RasterFilterKey other = (RasterFilterKey) obj;
+        return hash == other.hash && permissionsDigest.equals(other.permissionsDigest)
+                && maskLayerName.equals(other.maskLayerName) && equal(filter, other.filter)
+                && equal(targetCrs, other.targetCrs) && Arrays.equals(bounds, other.bounds)
+                && equal(boundsCrs, other.boundsCrs)
+                && Double.compare(simplifyTolerance, other.simplifyTolerance) == 0
+                && Double.compare(minArea, other.minArea) == 0;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "RasterFilterKey[permissions=" + permissionsDigest + ", mask=" + maskLayerName
+                + ", filter=" + filter + ", reprojected=" + (targetCrs != null) + ", bounds="
+                + Arrays.toString(bounds) + ", tolerance="
+                + simplifyTolerance + ", minArea=" + minArea + "]";
+    }
+
+}
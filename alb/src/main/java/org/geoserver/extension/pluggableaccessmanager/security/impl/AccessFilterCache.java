@@ -0,0 +1,178 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Bounded cache of the access filters built by {@link DataAccessLimitsBuilder}, keyed by CQL filter template and permission set.
+ *
+ * <p>
+ * Permissions are put in canonical form (i.e. a {@link PermissionSet}: sorted, without duplicates) before being substituted into the template, so that users sharing the same
+ * grants share the same {@link Filter} instance, regardless of the order in which their permissions were retrieved. Filters are thus built (see
+ * {@link FilterTemplate#build(List)}) only when a new distinct permission set shows up.
+ * </p>
+ *
+ * <p>
+ * Hit and miss counters are exposed to monitor the number of distinct permission sets.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class AccessFilterCache {
+
+    private static final Logger LOGGER = Logging.getLogger(AccessFilterCache.class);
+
+    /** The default maximum number of cached filters. */
+    public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private final Cache<Key, Filter> cache;
+
+    /**
+     * Creates a cache holding at most {@value #DEFAULT_MAXIMUM_SIZE} filters.
+     */
+    public AccessFilterCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a cache holding at most {@code maximumSize} filters.
+     *
+     * @param maximumSize the maximum number of cached filters
+     */
+    public AccessFilterCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * Returns the filter obtained by substituting the comma-separated list of permission tokens into the provided template, building it only if it
+     * is not cached yet.
+     *
+     * @param cqlFilterTemplate the CQL filter template
+     * @param permissions the user permissions
+     * @return the filter
+     * @throws CQLException if the resulting predicate cannot be parsed (failures are not cached)
+     */
+    public Filter getFilter(String cqlFilterTemplate, List<String> permissions)
+            throws CQLException {
+        return getFilter(FilterTemplate.compile(cqlFilterTemplate), permissions);
+    }
+
+    /**
+     * Returns the filter obtained by applying the provided template to the permission tokens, building it only if it is not cached yet.
+     *
+     * @param filterTemplate the compiled CQL filter template
+     * @param permissions the user permissions
+     * @return the filter
+     * @throws CQLException if the resulting predicate cannot be parsed (failures are not cached)
+     */
+    public Filter getFilter(FilterTemplate filterTemplate, List<String> permissions)
+            throws CQLException {
+        final Key key = new Key(filterTemplate, PermissionSet.of(permissions));
+        try {
+            return cache.get(key, new Callable<Filter>() {
+                @Override
+                public Filter call() throws CQLException {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Building access filter from template " + key.template
+                                + " and " + key.permissions.size() + " permissions");
+                    }
+                    return key.template.build(key.permissions);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CQLException) {
+                throw (CQLException) e.getCause();
+            }
+            throw new RuntimeException("Failed to build access filter", e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException("Failed to build access filter", e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of lookups which found a cached filter
+     */
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    /**
+     * @return the number of lookups which required building a filter, i.e. the number of distinct (template, permission set) pairs seen so far,
+     *         unless entries were evicted
+     */
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * @return the cache statistics
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the number of cached filters
+     */
+    public long getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Discards all cached filters.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Cache key: a compiled template and a permission set.
+     */
+    private static final class Key {
+
+        final FilterTemplate template;
+
+        final PermissionSet permissions;
+
+        final int hash;
+
+        Key(FilterTemplate template, PermissionSet permissions) {
+            this.template = template;
+            this.permissions = permissions;
+            this.hash = 31 * template.hashCode() + permissions.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && template.equals(other.template)
+                    && permissions.equals(other.permissions);
+        }
+    }
+
+}
@@ -0,0 +1,496 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.PERMISSIONS_CACHE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geoserver.extension.pluggableaccessmanager.data.impl.CachingDataAccessAdapter;
+import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterKey;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Warms up the permissions and raster filters caches after a restart.
+ *
+ * <p>
+ * On shutdown, the names of the recently active users (see {@link CachingDataAccessAdapter#getRecentUsers()}) and the arguments of the recent
+ * raster filter builds (see {@link CachingRasterFilterBuilder#getRecentRequests()}) are saved to {@value #SNAPSHOT_FILE_NAME} in the data
+ * directory. Once the application context is ready, the snapshot is read back and, in the background:
+ * </p>
+ * <ul>
+ * <li>the permissions of the users are loaded in batches (see {@link CachingDataAccessAdapter#preloadPermissions(java.util.Collection)}), to be
+ * served on the first cache miss of each user within {@value CachingDataAccessAdapter#PRELOAD_TTL} seconds; they are also stored in the
+ * permissions cache under the user name, unless key authentication was used before the restart (entries would be keyed by authentication key
+ * then) or the cache time to live is shorter than the preload one (entries would expire before the preloaded permissions);</li>
+ * <li>the raster filters are rebuilt, in parallel, through the caching raster filter builder.</li>
+ * </ul>
+ *
+ * <p>
+ * Startup is never delayed, and failures are only logged: requests issued during the warm-up are served as usual.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class CacheWarmUp implements ApplicationListener<ContextRefreshedEvent>, DisposableBean {
+
+    private static final Logger LOGGER = Logging.getLogger(CacheWarmUp.class);
+
+    /** The snapshot file path, relative to the data directory. */
+    public static final String SNAPSHOT_FILE_NAME = "pluggableaccessmanager/cache-warmup.snapshot";
+
+    /** Version of the snapshot format; snapshots written by other versions are ignored. */
+    static final int SNAPSHOT_VERSION = 3;
+
+    /** Maximum number of entries read from a snapshot, to fail fast on corrupt files. */
+    static final int MAX_SNAPSHOT_ENTRIES = 1000000;
+
+    /** Maximum length of the mask layer filters read from a snapshot, in bytes. */
+    static final int MAX_TEXT_LENGTH = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Default number of threads performing the warm-up. */
+    static final int DEFAULT_THREADS = 4;
+
+    /** Default maximum number of users saved in the snapshot. */
+    static final int DEFAULT_MAX_USERS = 1000;
+
+    /** Default maximum number of raster filters saved in the snapshot. */
+    static final int DEFAULT_MAX_RASTER_FILTERS = 200;
+
+    /** Number of users whose permissions are loaded together. */
+    static final int USERS_BATCH_SIZE = 100;
+
+    private final File snapshotFile;
+
+    private final CachingDataAccessAdapter dataAccess;
+
+    private final CachingRasterFilterBuilder rasterFilterBuilder;
+
+    private final Catalog catalog;
+
+    private CacheManager cacheManager;
+
+    private boolean enabled = true;
+
+    private int threads = DEFAULT_THREADS;
+
+    private int maxUsers = DEFAULT_MAX_USERS;
+
+    private int maxRasterFilters = DEFAULT_MAX_RASTER_FILTERS;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private ExecutorService executor;
+
+    /** The snapshot read at startup, saved again on shutdown along with the recent activity. */
+    private volatile Snapshot restored = new Snapshot();
+
+    private final AtomicLong warmedUserCount = new AtomicLong();
+
+    private final AtomicLong warmedRasterFilterCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param configDir the data directory
+     * @param dataAccess the caching data access, whose recently active users are tracked
+     * @param rasterFilterBuilder the caching raster filter builder, whose recent builds are tracked ({@code null} to skip raster filters)
+     * @param catalog the catalog the resources of the raster filters are looked up in ({@code null} to skip raster filters)
+     */
+    public CacheWarmUp(File configDir, CachingDataAccessAdapter dataAccess,
+            CachingRasterFilterBuilder rasterFilterBuilder, Catalog catalog) {
+        if (configDir == null) {
+            throw new IllegalArgumentException("Configuration directory must not be null");
+        }
+        if (dataAccess == null) {
+            throw new IllegalArgumentException("Data access must not be null");
+        }
+        this.snapshotFile = new File(configDir, SNAPSHOT_FILE_NAME);
+        this.dataAccess = dataAccess;
+        this.rasterFilterBuilder = rasterFilterBuilder;
+        this.catalog = catalog;
+    }
+
+    /**
+     * @param cacheManager the cache manager holding the permissions cache; if not set, permissions are only preloaded
+     */
+    public void setCacheManager(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * @param enabled {@code false} to disable both the warm-up and the snapshot (enabled by default)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param threads the number of threads performing the warm-up
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param maxUsers the maximum number of users saved in the snapshot
+     */
+    public void setMaxUsers(int maxUsers) {
+        if (maxUsers < 0) {
+            throw new IllegalArgumentException("Invalid maximum number of users: " + maxUsers);
+        }
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * @param maxRasterFilters the maximum number of raster filters saved in the snapshot
+     */
+    public void setMaxRasterFilters(int maxRasterFilters) {
+        if (maxRasterFilters < 0) {
+            throw new IllegalArgumentException("Invalid maximum number of raster filters: "
+                    + maxRasterFilters);
+        }
+        this.maxRasterFilters = maxRasterFilters;
+    }
+
+    /**
+     * @return the number of users whose permissions have been warmed up
+     */
+    public long getWarmedUserCount() {
+        return warmedUserCount.get();
+    }
+
+    /**
+     * @return the number of raster filters which have been warmed up
+     */
+    public long getWarmedRasterFilterCount() {
+        return warmedRasterFilterCount.get();
+    }
+
+    /**
+     * Starts the warm-up in the background, the first time the context is refreshed.
+     */
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!enabled || !started.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cache-warmup-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+            final Executor warmUpExecutor = executor;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp(warmUpExecutor);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the snapshot and submits the warm-up tasks to the specified executor.
+     */
+    void warmUp(Executor executor) {
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.read(snapshotFile);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not read cache warm-up snapshot " + snapshotFile, e);
+            return;
+        }
+        if (snapshot == null) {
+            return;
+        }
+        restored = snapshot;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Warming up caches for " + snapshot.users.size() + " users and "
+                    + snapshot.rasterFilters.size() + " raster filters");
+        }
+
+        final boolean cachePermissions = !snapshot.keyAuthentication;
+        for (int i = 0; i < snapshot.users.size(); i += USERS_BATCH_SIZE) {
+            final List<String> batch = snapshot.users.subList(i,
+                    Math.min(i + USERS_BATCH_SIZE, snapshot.users.size()));
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUpPermissions(batch, cachePermissions);
+                }
+            });
+        }
+        if (rasterFilterBuilder != null && catalog != null) {
+            for (final RasterFilterRequest request : snapshot.rasterFilters) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmUpRasterFilter(request);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Preloads the permissions of the specified users and, if requested and worthwhile, stores them in the permissions cache under the user
+     * name.
+     */
+    void warmUpPermissions(List<String> userNames, boolean cachePermissions) {
+        try {
+            Map<String, PermissionSet> permissions = dataAccess.preloadPermissions(userNames);
+            Cache cache = (cachePermissions && cacheManager != null) ? cacheManager
+                    .getCache(PERMISSIONS_CACHE) : null;
+            if (cache != null && outlivesPreload(cache)) {
+                for (Map.Entry<String, PermissionSet> entry : permissions.entrySet()) {
+                    // the cache key is the user name, unless key authentication is used
+                    if (cache.get(entry.getKey()) == null) {
+                        cache.put(entry.getKey(), PermissionSet.of(entry.getValue()));
+                    }
+                }
+            }
+            warmedUserCount.addAndGet(permissions.size());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not warm up the permissions of users " + userNames, e);
+        }
+    }
+
+    /**
+     * @return {@code true} if the entries of the specified cache live longer than the preloaded permissions
+     */
+    static boolean outlivesPreload(Cache cache) {
+        if (!(cache.getNativeCache() instanceof Ehcache)) {
+            return false;
+        }
+        CacheConfiguration config = ((Ehcache) cache.getNativeCache()).getCacheConfiguration();
+        return config.isEternal()
+                || config.getTimeToLiveSeconds() > CachingDataAccessAdapter.PRELOAD_TTL;
+    }
+
+    void warmUpRasterFilter(RasterFilterRequest request) {
+        try {
+            ResourceInfo resource = catalog.getResource(request.getResourceId(),
+                    ResourceInfo.class);
+            if (resource == null) {
+                // removed since the snapshot was taken
+                return;
+            }
+            rasterFilterBuilder.buildRasterFilter(request.getKey(), resource,
+                    request.getMaskLayerName(), request.getMaskFilter());
+            warmedRasterFilterCount.incrementAndGet();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not warm up raster filter " + request, e);
+        }
+    }
+
+    /**
+     * Stops the warm-up, if still running, and saves the snapshot.
+     */
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        if (!enabled) {
+            return;
+        }
+        try {
+            takeSnapshot().write(snapshotFile);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not save cache warm-up snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Merges the recent activity with the snapshot read at startup, most recent first.
+     */
+    Snapshot takeSnapshot() {
+        Snapshot previous = restored;
+        List<String> recentUsers = dataAccess.getRecentUsers();
+        Set<String> users = new LinkedHashSet<String>(recentUsers);
+        users.addAll(previous.users);
+        Set<RasterFilterRequest> rasterFilters = new LinkedHashSet<RasterFilterRequest>();
+        if (rasterFilterBuilder != null) {
+            rasterFilters.addAll(rasterFilterBuilder.getRecentRequests());
+        }
+        rasterFilters.addAll(previous.rasterFilters);
+
+        Snapshot snapshot = new Snapshot();
+        // the previous run tells only if no user has been active since
+        snapshot.keyAuthentication = recentUsers.isEmpty() ? previous.keyAuthentication
+                : dataAccess.isKeyAuthenticationUsed();
+        snapshot.users.addAll(new ArrayList<String>(users).subList(0,
+                Math.min(maxUsers, users.size())));
+        snapshot.rasterFilters.addAll(new ArrayList<RasterFilterRequest>(rasterFilters).subList(
+                0, Math.min(maxRasterFilters, rasterFilters.size())));
+        return snapshot;
+    }
+
+    /**
+     * The users and raster filters to warm up.
+     */
+    static class Snapshot {
+
+        /** Whether key authentication was used, i.e. permissions were cached by authentication key rather than by user name. */
+        boolean keyAuthentication;
+
+        final List<String> users = new ArrayList<String>();
+
+        final List<RasterFilterRequest> rasterFilters = new ArrayList<RasterFilterRequest>();
+
+        /**
+         * Reads the snapshot saved in the specified file.
+         *
+         * <p>
+         * The file holds the format version, whether key authentication was used, the number of users followed by their names, then the number of raster filter requests followed by
+         * the key, resource id and mask layer filter of each request. Plain data is written, no objects are deserialized.
+         * </p>
+         *
+         * @return the snapshot, or {@code null} if the file does not exist or was written by an incompatible version
+         * @throws IOException if the file cannot be read or is corrupt
+         */
+        static Snapshot read(File file) throws IOException {
+            if (!file.isFile()) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    file)));
+            try {
+                if (in.readInt() != SNAPSHOT_VERSION) {
+                    return null;
+                }
+                Snapshot snapshot = new Snapshot();
+                snapshot.keyAuthentication = in.readBoolean();
+                int userCount = readCount(in);
+                for (int i = 0; i < userCount; i++) {
+                    snapshot.users.add(in.readUTF());
+                }
+                int requestCount = readCount(in);
+                for (int i = 0; i < requestCount; i++) {
+                    RasterFilterKey key = RasterFilterKey.read(in);
+                    String resourceId = in.readUTF();
+                    String maskFilter = readText(in);
+                    snapshot.rasterFilters.add(new RasterFilterRequest(key, resourceId,
+                            maskFilter));
+                }
+                return snapshot;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static void writeText(DataOutputStream out, String text) throws IOException {
+            if (text == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = text.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readText(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length == -1) {
+                return null;
+            }
+            if (length < 0 || length > MAX_TEXT_LENGTH) {
+                throw new IOException("Invalid text length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private static int readCount(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            if (count < 0 || count > MAX_SNAPSHOT_ENTRIES) {
+                throw new IOException("Invalid number of snapshot entries: " + count);
+            }
+            return count;
+        }
+
+        /**
+         * Writes the snapshot to a temporary file, then renames it, so that a partially written snapshot is never read.
+         */
+        void write(File file) throws IOException {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            File tmpFile = new File(dir, file.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeBoolean(keyAuthentication);
+                out.writeInt(users.size());
+                for (String user : users) {
+                    out.writeUTF(user);
+                }
+                out.writeInt(rasterFilters.size());
+                for (RasterFilterRequest request : rasterFilters) {
+                    request.getKey().write(out);
+                    out.writeUTF(request.getResourceId());
+                    // may exceed the length supported by writeUTF
+                    writeText(out, request.getMaskFilterText());
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+                throw new IOException("Could not rename " + tmpFile + " to " + file);
+            }
+        }
+
+    }
+
+}
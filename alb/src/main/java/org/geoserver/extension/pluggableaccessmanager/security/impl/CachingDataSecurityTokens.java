@@ -0,0 +1,55 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.DATA_SECURITY_TOKENS_CACHE;
+import it.geosolutions.geoserver.security.gwc.dispatch.DataSecurityTokenCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geoserver.extension.pluggableaccessmanager.data.impl.CachingDataAccessAdapter;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.security.core.Authentication;
+
+/**
+ * {@link DataSecurityTokenCache} implementation backed by the {@value org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults#DATA_SECURITY_TOKENS_CACHE}
+ * cache.
+ *
+ * <p>
+ * Entries use the same key as the permissions cache (see {@link CacheHelper#getCacheKey(Authentication)}) and are evicted along with it by
+ * {@link CachingDataAccessAdapter}, as well as whenever the adapter loads the permissions again, so that tokens never outlive the permissions
+ * they were computed from.
+ * </p>
+ *
+ * <p>
+ * The cache configuration is annotation-driven and requires the class be instantiated as a Spring bean to function.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class CachingDataSecurityTokens implements DataSecurityTokenCache {
+
+    @Override
+    @Cacheable(value = DATA_SECURITY_TOKENS_CACHE, key = "T(org.geoserver.extension.pluggableaccessmanager.security.impl.CacheHelper).getCacheKey(#user)")
+    public Map<String, String> getUserTokens(Authentication user) {
+        return new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Removes the tokens cached under the specified key.
+     *
+     * @param key the cache key, see {@link CacheHelper#getCacheKey(Authentication)}
+     */
+    @CacheEvict(value = DATA_SECURITY_TOKENS_CACHE, key = "#key")
+    public void evict(String key) {
+        // no-op, just a placeholder to trigger cache eviction
+    }
+
+    @Override
+    @CacheEvict(value = DATA_SECURITY_TOKENS_CACHE, allEntries = true)
+    public void clear() {
+        // no-op, just a placeholder to trigger cache eviction
+    }
+
+}
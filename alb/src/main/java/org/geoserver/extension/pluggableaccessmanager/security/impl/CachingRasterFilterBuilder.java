@@ -4,30 +4,53 @@ import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.RA
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.config.CacheConfiguration;
+
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.extension.pluggableaccessmanager.data.EvictableCache;
+import org.geoserver.extension.pluggableaccessmanager.data.impl.SingleFlight;
 import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterBuilder;
+import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterKey;
 import org.geotools.data.DataAccess;
-import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.NameImpl;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.IdentityTransform;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
-import org.springframework.security.core.Authentication;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
@@ -35,6 +58,30 @@ import com.vividsolutions.jts.geom.Polygon;
 /**
  * Implementation of {@link RasterFilterBuilder} that caches the calculated geometries.
  * 
+ * <p>
+ * Geometries are cached by {@link RasterFilterKey}, already reprojected to the CRS of the resource: users which have been granted the same
+ * permissions share the same entries.
+ * </p>
+ * 
+ * <p>
+ * The area selected in the mask layer is also kept in the mask layer CRS, so that it is only queried once for resources having the same bounds
+ * but different CRSs; the transforms between CRSs are memoized as well.
+ * </p>
+ * 
+ * <p>
+ * If the key is {@link RasterFilterKey#isBounded() bounded}, only the mask features intersecting the native bounds of the resource are read;
+ * otherwise all the matching features are read, and the area is shared by all the resources having the same CRS.
+ * </p>
+ * 
+ * <p>
+ * Selected geometries are dissolved, and optionally simplified and cleaned of slivers, as specified by the key (see {@link RasterMaskProcessor}).
+ * </p>
+ * 
+ * <p>
+ * The arguments of the most recent builds are kept as {@link RasterFilterRequest}s, so that they can be replayed after a restart (see
+ * {@link CacheWarmUp}).
+ * </p>
+ * 
  * @author Stefano Costa, GeoSolutions
  *
  */
@@ -42,15 +89,96 @@ public class CachingRasterFilterBuilder implements RasterFilterBuilder, Evictabl
 
     private static final Logger LOGGER = Logging.getLogger(CachingRasterFilterBuilder.class);
 
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    /** Default time to live of the entries kept along with the raster filters, in seconds; matches the default raster filters cache configuration. */
+    static final long DEFAULT_TIME_TO_LIVE = 3600;
+
+    /** Time to live of the entries kept along with the raster filters, in seconds ({@code 0} if they never expire). */
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    /** Areas in the mask layer CRS, shared by all the target CRSs; expire after the {@link #setTimeToLive(long) time to live}. */
+    private volatile Cache<RasterFilterKey, Optional<MultiPolygon>> nativeAreas = buildCache(DEFAULT_TIME_TO_LIVE);
+
+    /** Coalesces concurrent builds of the same raster filter. */
+    private final SingleFlight<RasterFilterKey, MultiPolygon> builds = new SingleFlight<RasterFilterKey, MultiPolygon>();
+
+    /** Post-processes the geometries selected in the mask layer. */
+    private final RasterMaskProcessor maskProcessor = new RasterMaskProcessor();
+
+    /** Transforms by (source CRS, target CRS) pair. */
+    private final Cache<List<CoordinateReferenceSystem>, MathTransform> transforms = CacheBuilder
+            .newBuilder().maximumSize(100).build();
+
+    /** Maximum number of recent builds kept. */
+    static final int MAX_RECENT_REQUESTS = 1000;
+
+    /** Arguments of the most recent builds, by key. */
+    private final Cache<RasterFilterKey, RasterFilterRequest> recentRequests = CacheBuilder
+            .newBuilder().maximumSize(MAX_RECENT_REQUESTS).build();
+
+    private static <V> Cache<RasterFilterKey, V> buildCache(long timeToLive) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(1000);
+        if (timeToLive > 0) {
+            builder.expireAfterWrite(timeToLive, TimeUnit.SECONDS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the time to live of the areas kept along with the raster filters, in seconds ({@code 0} if they never expire)
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time to live of the areas kept along with the raster filters, which should match the one of the raster filters cache;
+     * entries kept so far are discarded.
+     * 
+     * @param timeToLive the time to live, in seconds ({@code 0} if they never expire)
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Invalid time to live: " + timeToLive);
+        }
+        this.timeToLive = timeToLive;
+        this.nativeAreas = buildCache(timeToLive);
+    }
+
+    /**
+     * Sets the time to live of the areas kept along with the raster filters (see {@link #setTimeToLive(long)}) to the one of the
+     * raster filters cache, as configured in EhCache.
+     * 
+     * @param cacheManager the cache manager
+     */
+    public void setCacheManager(CacheManager cacheManager) {
+        org.springframework.cache.Cache cache = (cacheManager != null) ? cacheManager
+                .getCache(RASTER_FILTERS_CACHE) : null;
+        if (cache == null || !(cache.getNativeCache() instanceof Ehcache)) {
+            LOGGER.warning("Raster filters cache not found, areas will expire after "
+                    + timeToLive + " seconds");
+            return;
+        }
+        CacheConfiguration config = ((Ehcache) cache.getNativeCache()).getCacheConfiguration();
+        setTimeToLive(config.isEternal() ? 0 : config.getTimeToLiveSeconds());
+    }
+
     @Override
-    @Cacheable(value = RASTER_FILTERS_CACHE, key = "T(org.geoserver.extension.pluggableaccessmanager.security.impl.CacheHelper).getCacheKey(#user)")
-    public MultiPolygon buildRasterFilter(Authentication user, ResourceInfo resource,
-            Name maskLayerName, Filter filter) throws IOException {
-        return buildRasterFilterInternal(resource, maskLayerName, filter);
+    @Cacheable(value = RASTER_FILTERS_CACHE, key = "#key")
+    public MultiPolygon buildRasterFilter(final RasterFilterKey key, final ResourceInfo resource,
+            final Name maskLayerName, final Filter filter) throws IOException {
+        // concurrent misses for the same key share a single build
+        return builds.load(key, new Callable<MultiPolygon>() {
+            @Override
+            public MultiPolygon call() throws IOException {
+                return buildRasterFilterInternal(key, resource, maskLayerName, filter);
+            }
+        });
     }
 
-    MultiPolygon buildRasterFilterInternal(ResourceInfo resource, Name maskLayerName, Filter filter)
-            throws IOException {
+    MultiPolygon buildRasterFilterInternal(RasterFilterKey key, ResourceInfo resource,
+            Name maskLayerName, Filter filter) throws IOException {
         if (maskLayerName == null) {
             throw new IllegalArgumentException("The name of the mask layer must be set");
         }
@@ -62,57 +190,221 @@ public class CachingRasterFilterBuilder implements RasterFilterBuilder, Evictabl
         if (!(maskLayer.getResource() instanceof FeatureTypeInfo)) {
             throw new IllegalArgumentException(maskLayerName + " is not a vector layer");
         }
-        if (filter == null) {
-            filter = Filter.INCLUDE;
+        FeatureTypeInfo maskFeatureType = (FeatureTypeInfo) maskLayer.getResource();
+        MultiPolygon roiArea = getNativeRoiArea(key, resource, maskFeatureType, filter);
+        if (roiArea != null) {
+            // reproject area if necessary
+            roiArea = reprojectRoiArea(maskFeatureType.getCRS(), resource.getCRS(), roiArea);
         }
+        recordRequest(key, resource, filter);
+        return roiArea;
+    }
 
-        if (LOGGER.isLoggable(Level.FINE)) {
-            LOGGER.log(Level.FINE, "Mask layer: {0}; Mask layer filter: {1}", new Object[] {
-                    maskLayerName, filter });
+    private void recordRequest(RasterFilterKey key, ResourceInfo resource, Filter filter) {
+        if (resource.getId() == null) {
+            return;
+        }
+        try {
+            recentRequests.put(key, new RasterFilterRequest(key, resource.getId(), filter));
+        } catch (RuntimeException e) {
+            // the filter cannot be encoded, the build will just not be replayed
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Could not record raster filter request for "
+                        + resource.getName(), e);
+            }
         }
-        FeatureTypeInfo maskFeatureType = (FeatureTypeInfo) maskLayer.getResource();
-        DataAccess<? extends FeatureType, ? extends Feature> dataStore = maskFeatureType.getStore()
-                .getDataStore(null);
-        return getRoiArea(dataStore, new NameImpl(maskFeatureType.getNativeName()), filter);
     }
 
+    /**
+     * @return the arguments of the most recent raster filter builds
+     */
+    public List<RasterFilterRequest> getRecentRequests() {
+        return new ArrayList<RasterFilterRequest>(recentRequests.asMap().values());
+    }
+
+    MultiPolygon getNativeRoiArea(final RasterFilterKey key, final ResourceInfo resource,
+            final FeatureTypeInfo maskFeatureType, Filter filter) throws IOException {
+        final Filter maskFilter = (filter != null) ? filter : Filter.INCLUDE;
+        try {
+            return nativeAreas.get(key.getNativeKey(), new Callable<Optional<MultiPolygon>>() {
+                @Override
+                public Optional<MultiPolygon> call() throws IOException {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.log(Level.FINE, "Mask layer: {0}; Mask layer filter: {1}",
+                                new Object[] { maskFeatureType.prefixedName(), maskFilter });
+                    }
+                    DataAccess<? extends FeatureType, ? extends Feature> dataStore = maskFeatureType
+                            .getStore().getDataStore(null);
+                    // the bounds are part of the key, the area must be read within them only if they are
+                    ReferencedEnvelope bounds = key.isBounded() ? getMaskBounds(resource,
+                            maskFeatureType.getCRS()) : null;
+                    return Optional.fromNullable(getRoiArea(dataStore,
+                            new NameImpl(maskFeatureType.getNativeName()), maskFilter, bounds,
+                            key.getSimplifyTolerance(), key.getMinArea()));
+                }
+            }).orNull();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the native bounds of the resource in the mask layer CRS, or {@code null} if they are not known or cannot be transformed, in which
+     * case the mask features are selected regardless of their location.
+     */
+    ReferencedEnvelope getMaskBounds(ResourceInfo resource, CoordinateReferenceSystem maskCrs) {
+        ReferencedEnvelope bounds = resource.getNativeBoundingBox();
+        if (bounds == null || bounds.isNull() || bounds.getCoordinateReferenceSystem() == null
+                || maskCrs == null) {
+            return null;
+        }
+        if (CRS.equalsIgnoreMetadata(bounds.getCoordinateReferenceSystem(), maskCrs)) {
+            return bounds;
+        }
+        try {
+            return bounds.transform(maskCrs, true);
+        } catch (Exception e) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Could not transform the bounds of " + resource.getName()
+                        + " to the mask layer CRS, all mask features will be read", e);
+            }
+            return null;
+        }
+    }
+
+    MultiPolygon reprojectRoiArea(final CoordinateReferenceSystem maskCrs,
+            final CoordinateReferenceSystem resourceCrs, MultiPolygon roiArea) {
+        if (resourceCrs == null) {
+            return roiArea;
+        }
+        try {
+            MathTransform mt = transforms.get(Arrays.asList(maskCrs, resourceCrs),
+                    new Callable<MathTransform>() {
+                        @Override
+                        public MathTransform call() throws Exception {
+                            if (LOGGER.isLoggable(Level.FINE)) {
+                                LOGGER.fine("Mask layer CRS: " + maskCrs.getName()
+                                        + "; Resource CRS: " + resourceCrs.getName());
+                            }
+                            if (CRS.equalsIgnoreMetadata(maskCrs, resourceCrs)) {
+                                return IdentityTransform.create(2);
+                            }
+                            return CRS.findMathTransform(maskCrs, resourceCrs, true);
+                        }
+                    });
+            if (mt.isIdentity()) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Mask and Resource CRS coincide, no reprojection is necessary");
+                }
+                return roiArea;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Mask and Resource CRS differ, ROI area will be reprojected");
+            }
+            return (MultiPolygon) JTS.transform(roiArea, mt);
+        } catch (Exception e) {
+            throw new RuntimeException(
+                    "Failed to reproject the restricted area to the layer's native SRS", e);
+        }
+    }
+
+    /**
+     * Reads the polygons of the mask features matching the filter and intersecting the bounds, and processes them.
+     * 
+     * <p>
+     * Only the default geometry is read and features are streamed: polygons are dissolved in batches as they are read, see
+     * {@link RasterMaskProcessor.Accumulator}.
+     * </p>
+     */
     MultiPolygon getRoiArea(DataAccess<? extends FeatureType, ? extends Feature> dataStore,
-            Name typeName, Filter filter) throws IOException {
+            Name typeName, Filter filter, ReferencedEnvelope bounds, double simplifyTolerance,
+            double minArea) throws IOException {
         SimpleFeatureSource source = (SimpleFeatureSource) dataStore.getFeatureSource(typeName);
-        SimpleFeatureCollection features = source.getFeatures(filter);
-        SimpleFeatureIterator iterator = features.features();
-        MultiPolygon roiArea = null;
-        List<Polygon> polygonParts = new ArrayList<Polygon>();
-        while (iterator.hasNext()) {
-            SimpleFeature feature = iterator.next();
-            Geometry geom = (Geometry) feature.getDefaultGeometry();
-            // only Polygon and MultiPolygon geometries are taken into account
-            if (geom instanceof Polygon) {
-                polygonParts.add((Polygon) geom);
-            } else if (geom instanceof MultiPolygon) {
-                for (int i = 0; i < geom.getNumGeometries(); i++) {
-                    polygonParts.add((Polygon) geom.getGeometryN(i));
+        GeometryDescriptor geometryDescriptor = source.getSchema().getGeometryDescriptor();
+        if (geometryDescriptor == null) {
+            throw new IllegalArgumentException(typeName + " has no default geometry");
+        }
+        String geometryName = geometryDescriptor.getLocalName();
+        Filter queryFilter = filter;
+        if (bounds != null && filter != Filter.EXCLUDE) {
+            Filter bbox = FF.bbox(FF.property(geometryName), bounds);
+            queryFilter = (filter == Filter.INCLUDE) ? bbox : FF.and(filter, bbox);
+        }
+        Query query = new Query(source.getSchema().getTypeName(), queryFilter,
+                new String[] { geometryName });
+
+        RasterMaskProcessor.Accumulator polygonParts = maskProcessor.newAccumulator();
+        SimpleFeatureIterator iterator = source.getFeatures(query).features();
+        try {
+            while (iterator.hasNext()) {
+                SimpleFeature feature = iterator.next();
+                Geometry geom = (Geometry) feature.getDefaultGeometry();
+                // only Polygon and MultiPolygon geometries are taken into account
+                if (geom instanceof Polygon) {
+                    polygonParts.add((Polygon) geom);
+                } else if (geom instanceof MultiPolygon) {
+                    for (int i = 0; i < geom.getNumGeometries(); i++) {
+                        polygonParts.add((Polygon) geom.getGeometryN(i));
+                    }
                 }
             }
+        } finally {
+            iterator.close();
         }
-        if (polygonParts.size() > 0) {
-            roiArea = new MultiPolygon(polygonParts.toArray(new Polygon[] {}), polygonParts.get(0)
-                    .getFactory());
-        }
-        return roiArea;
+        return polygonParts.finish(simplifyTolerance, minArea);
+    }
+
+    /**
+     * @return the number of raster filter builds which were coalesced with a concurrent build of the same filter
+     */
+    public long getCoalescedBuildCount() {
+        return builds.getCoalescedCount();
     }
 
+    /**
+     * @return the number of raster masks built so far
+     */
+    public long getProcessedMaskCount() {
+        return maskProcessor.getProcessedCount();
+    }
+
+    /**
+     * @return the total number of vertices of the raster masks built so far, before post-processing
+     */
+    public long getInputVertexCount() {
+        return maskProcessor.getInputVertexCount();
+    }
+
+    /**
+     * @return the total number of vertices of the raster masks built so far, after post-processing
+     */
+    public long getOutputVertexCount() {
+        return maskProcessor.getOutputVertexCount();
+    }
+
+    /**
+     * @return the fraction of vertices removed by post-processing, between {@code 0} and {@code 1}
+     */
+    public double getVertexReduction() {
+        return maskProcessor.getVertexReduction();
+    }
+
+    /**
+     * Entries are not bound to a single user, hence they cannot be evicted by user key: this method does nothing and always returns {@code false}.
+     * Entries are refreshed when the user permissions change anyway, as the permissions are part of the cache key.
+     */
     @Override
-    @CacheEvict(value = RASTER_FILTERS_CACHE, key = "#key")
     public boolean clearCacheEntry(String key) {
-        // no-op, just a placeholder to trigger cache eviction
-        return true;
+        return false;
     }
 
     @Override
     @CacheEvict(value = RASTER_FILTERS_CACHE, allEntries = true)
     public boolean clearAllCacheEntries() {
-        // no-op, just a placeholder to trigger cache eviction
+        nativeAreas.invalidateAll();
         return true;
     }
 
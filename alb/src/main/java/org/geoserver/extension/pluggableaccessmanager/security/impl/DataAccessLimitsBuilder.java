@@ -1,26 +1,27 @@
 package org.geoserver.extension.pluggableaccessmanager.security.impl;
 
 import it.geosolutions.geoserver.security.AccessLimitsBuilder;
+import it.geosolutions.geoserver.security.config.AccessLimitsBuilderConfiguration;
 
 import java.io.IOException;
-import java.text.MessageFormat;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.lang.StringUtils;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
-import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
 import org.geoserver.extension.pluggableaccessmanager.data.impl.CachingDataAccessAdapter;
 import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterBuilder;
+import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterKey;
 import org.geoserver.security.CatalogMode;
 import org.geoserver.security.CoverageAccessLimits;
 import org.geoserver.security.DataAccessLimits;
@@ -28,23 +29,29 @@ import org.geoserver.security.VectorAccessLimits;
 import org.geoserver.security.WMSAccessLimits;
 import org.geotools.feature.NameImpl;
 import org.geotools.filter.text.cql2.CQLException;
-import org.geotools.filter.text.ecql.ECQL;
 import org.geotools.geometry.jts.GeometryBuilder;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.Filter;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 import org.springframework.security.core.Authentication;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.vividsolutions.jts.geom.MultiPolygon;
 
 /**
  * {@link AccessLimitsBuilder} implementation that uses a {@link DataAccess} to retrieve a list of user permission tokens and uses them to build a CQL
  * filter based on a configurable template.
  * 
+ * <p>
+ * Options are parsed once, when the builder is {@link #bind(AccessLimitsBuilderConfiguration) bound} to a configuration; bound instances are
+ * immutable and thread-safe.
+ * </p>
+ * 
+ * <p>
+ * Parsed filters are kept in an {@link AccessFilterCache}, shared by all the instances bound from the same bean.
+ * </p>
+ * 
  * @author Stefano Costa, GeoSolutions
  *
  */
@@ -67,6 +74,34 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
      */
     static final String RASTER_MASK_FILTER_TEMPLATE_OPTION = "raster_mask_filter_template";
 
+    /**
+     * The name of the option used to specify the distance tolerance used to simplify the raster mask, in units of the mask layer CRS.
+     * 
+     * <p>
+     * If not specified, the mask is not simplified.
+     * </p>
+     */
+    static final String RASTER_MASK_SIMPLIFY_TOLERANCE_OPTION = "raster_mask_simplify_tolerance";
+
+    /**
+     * The name of the option used to specify the minimum area of the raster mask parts, in units of the mask layer CRS; smaller parts are dropped.
+     * 
+     * <p>
+     * If not specified, all parts are kept.
+     * </p>
+     */
+    static final String RASTER_MASK_MIN_AREA_OPTION = "raster_mask_min_area";
+
+    /**
+     * The name of the option used to specify whether only the raster mask features intersecting the bounds of the resource are read.
+     * 
+     * <p>
+     * If enabled (the default), fewer features are read for each resource, but raster filters are only shared among resources having the same
+     * bounds; if disabled, all the matching features are read once and the raster filter is shared among all the resources having the same CRS.
+     * </p>
+     */
+    static final String RASTER_MASK_BOUNDS_FILTER_OPTION = "raster_mask_bounds_filter";
+
     /** The default CQL filter template. */
     static final String DEFAULT_CQL_FILTER_TEMPLATE = "service_id IN ({0})";
 
@@ -79,25 +114,116 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
     }
 
     /** The factory used to obtain the data access instance. */
-    CachingDataAccessAdapter dataAccessAdapter;
+    final CachingDataAccessAdapter dataAccessAdapter;
 
     /** The bean used to build raster filters. */
-    RasterFilterBuilder rasterFilterBuilder;
+    final RasterFilterBuilder rasterFilterBuilder;
+
+    /** The cache of parsed access filters. */
+    final AccessFilterCache filterCache;
+
+    /** Configuration options (unmodifiable). */
+    final Map<String, Object> options;
+
+    /** The CQL filter template, parsed from the options. */
+    final FilterTemplate cqlFilterTemplate;
+
+    /** The raster mask layer name, parsed from the options ({@code null} if no raster filter should be built). */
+    final Name maskLayerName;
+
+    /** The CQL filter template to apply on the raster mask layer, parsed from the options. */
+    final FilterTemplate maskFilterTemplate;
+
+    /** The raster mask simplification tolerance, parsed from the options. */
+    final double maskSimplifyTolerance;
 
-    /** Configuration options. */
-    Map<String, Object> options;
+    /** The minimum area of the raster mask parts, parsed from the options. */
+    final double maskMinArea;
+
+    /** Whether the raster mask features are restricted to the bounds of the resource, parsed from the options. */
+    final boolean maskBoundsFilter;
+
+    /** Digest of the configuration (id and options) this builder is bound to. */
+    final String configurationDigest;
+
+    /**
+     * Data security tokens by permission set. Keys are weak and compared by identity, which is fine as permission sets are canonical.
+     */
+    final Cache<PermissionSet, String> dataSecurityTokens = CacheBuilder.newBuilder().weakKeys()
+            .build();
 
     /**
      * Constructor.
      * 
+     * <p>
+     * The created instance is not bound to any configuration, i.e. default options apply.
+     * </p>
+     * 
      * @param dataAccessAdapter the data access factory
      * @throws IOException
      */
     public DataAccessLimitsBuilder(CachingDataAccessAdapter dataAccessAdapter,
             RasterFilterBuilder rasterFilterBuilder) throws IOException {
+        this(dataAccessAdapter, rasterFilterBuilder, new AccessFilterCache());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * <p>
+     * The created instance is not bound to any configuration, i.e. default options apply.
+     * </p>
+     * 
+     * @param dataAccessAdapter the data access factory
+     * @param rasterFilterBuilder the raster filter builder
+     * @param filterCache the cache of parsed access filters
+     * @throws IOException
+     */
+    public DataAccessLimitsBuilder(CachingDataAccessAdapter dataAccessAdapter,
+            RasterFilterBuilder rasterFilterBuilder, AccessFilterCache filterCache)
+            throws IOException {
+        this(dataAccessAdapter, rasterFilterBuilder, filterCache, null, Collections
+                .<String, Object> emptyMap());
+    }
+
+    /**
+     * Creates a builder bound to the specified options.
+     * 
+     * @param dataAccessAdapter the data access factory
+     * @param rasterFilterBuilder the raster filter builder
+     * @param filterCache the cache of parsed access filters
+     * @param configurationId the id of the access limits builder configuration (may be {@code null})
+     * @param options the configuration options
+     */
+    DataAccessLimitsBuilder(CachingDataAccessAdapter dataAccessAdapter,
+            RasterFilterBuilder rasterFilterBuilder, AccessFilterCache filterCache,
+            String configurationId, Map<String, Object> options) {
         this.dataAccessAdapter = dataAccessAdapter;
         this.rasterFilterBuilder = rasterFilterBuilder;
-        this.options = Collections.emptyMap();
+        this.filterCache = filterCache;
+        this.options = Collections.unmodifiableMap(new HashMap<String, Object>(options));
+        this.cqlFilterTemplate = FilterTemplate.compile(getCqlFilterTemplate(this.options));
+        this.maskLayerName = getMaskLayerName(this.options);
+        this.maskFilterTemplate = FilterTemplate.compile(getMaskFilterTemplate(this.options));
+        this.maskSimplifyTolerance = getNonNegativeOption(this.options,
+                RASTER_MASK_SIMPLIFY_TOLERANCE_OPTION);
+        this.maskMinArea = getNonNegativeOption(this.options, RASTER_MASK_MIN_AREA_OPTION);
+        this.maskBoundsFilter = getBooleanOption(this.options, RASTER_MASK_BOUNDS_FILTER_OPTION,
+                true);
+        this.configurationDigest = buildConfigurationDigest(configurationId, this.options);
+    }
+
+    /**
+     * Computes a stable digest of the configuration id and options; options are sorted by name, so that the digest does not depend on their
+     * declaration order.
+     */
+    static String buildConfigurationDigest(String configurationId, Map<String, Object> options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(configurationId);
+        for (Map.Entry<String, Object> option : new TreeMap<String, Object>(options).entrySet()) {
+            sb.append('\n').append(option.getKey()).append('=').append(option.getValue());
+        }
+        return DigestUtils.md5Hex(sb.toString());
     }
 
     @Override
@@ -124,7 +250,7 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
      * </p>
      */
     Filter getAccessFilter(Authentication user) {
-        List<String> permissions = null;
+        PermissionSet permissions = null;
         try {
             permissions = getPermissions(user);
         } catch (IOException e) {
@@ -133,7 +259,6 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
             return Filter.EXCLUDE;
         }
 
-        String cqlFilterTemplate = getCqlFilterTemplate(options);
         Filter accessFilter = null;
         try {
             accessFilter = buildCqlFilter(cqlFilterTemplate, permissions);
@@ -170,13 +295,12 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
      * @return the geometry of the accessible area
      */
     MultiPolygon buildRasterFilter(Authentication user, ResourceInfo resource) {
-        Name maskLayerName = getMaskLayerName(options);
         if (maskLayerName == null) {
             // returning null is equivalent to an allow-all filter
             return null;
         }
 
-        List<String> permissions = null;
+        PermissionSet permissions = null;
         try {
             permissions = getPermissions(user);
         } catch (IOException e) {
@@ -185,13 +309,12 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
             return DENY_ALL_RASTER_FILTER;
         }
 
-        String maksFilterTemplate = getMaskFilterTemplate(options);
         Filter maskFilter = null;
         try {
-            maskFilter = buildCqlFilter(maksFilterTemplate, permissions);
+            maskFilter = buildCqlFilter(maskFilterTemplate, permissions);
         } catch (CQLException e) {
             LOGGER.log(Level.SEVERE, "Could not build CQL filter using template "
-                    + maksFilterTemplate + " and permissions " + permissions
+                    + maskFilterTemplate + " and permissions " + permissions
                     + ": denying access to all");
             if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.log(Level.FINE, "Error parsing CQL filter", e);
@@ -201,14 +324,14 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
 
         MultiPolygon roiArea = null;
         try {
-            roiArea = rasterFilterBuilder.buildRasterFilter(user, resource, maskLayerName,
+            RasterFilterKey key = new RasterFilterKey(permissions, maskLayerName,
+                    maskFilterTemplate.getTemplate(), resource.getCRS(),
+                    maskBoundsFilter ? resource.getNativeBoundingBox() : null,
+                    maskSimplifyTolerance, maskMinArea);
+            roiArea = rasterFilterBuilder.buildRasterFilter(key, resource, maskLayerName,
                     maskFilter);
             if (roiArea == null) {
                 roiArea = DENY_ALL_RASTER_FILTER;
-            } else {
-                // reproject area if necessary
-                LayerInfo mask = resource.getCatalog().getLayerByName(maskLayerName);
-                roiArea = reprojectRoiArea(mask.getResource().getCRS(), resource.getCRS(), roiArea);
             }
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Could not retrieve ROI area: denying access to all", e);
@@ -222,37 +345,12 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
         return roiArea;
     }
 
-    MultiPolygon reprojectRoiArea(CoordinateReferenceSystem maskCrs,
-            CoordinateReferenceSystem resourceCrs, MultiPolygon roiArea) {
-        try {
-            if (LOGGER.isLoggable(Level.FINE)) {
-                LOGGER.fine("Mask layer CRS: " + maskCrs.getName());
-            }
-            if (LOGGER.isLoggable(Level.FINE)) {
-                LOGGER.fine("Resource CRS: " + resourceCrs.getName());
-            }
-            if ((resourceCrs != null) && !CRS.equalsIgnoreMetadata(maskCrs, resourceCrs)) {
-                if (LOGGER.isLoggable(Level.FINE)) {
-                    LOGGER.fine("Mask and Resource CRS differ, ROI area will be reprojected");
-                }
-                MathTransform mt = CRS.findMathTransform(maskCrs, resourceCrs, true);
-                return (MultiPolygon) JTS.transform(roiArea, mt);
-            } else {
-                if (LOGGER.isLoggable(Level.FINE)) {
-                    LOGGER.fine("Mask and Resource CRS coincide, no reprojection is necessary");
-                }
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(
-                    "Failed to reproject the restricted area to the layer's native SRS", e);
-        }
-        return roiArea;
-    }
-
-    List<String> getPermissions(Authentication user) throws IOException {
-        List<String> permissions = dataAccessAdapter.getUserPermissions(user);
+    PermissionSet getPermissions(Authentication user) throws IOException {
+        PermissionSet permissions = dataAccessAdapter.getUserPermissions(user);
+        // cache hits do not reach the adapter, reload the permissions ahead of expiration from here
+        dataAccessAdapter.refreshIfDue(user);
         if (permissions == null) {
-            permissions = Collections.emptyList();
+            permissions = PermissionSet.EMPTY;
         }
         return permissions;
     }
@@ -301,25 +399,71 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
         return (String) options.get(RASTER_MASK_FILTER_TEMPLATE_OPTION);
     }
 
-    Filter buildCqlFilter(String cqlFilterTemplate, List<String> permissions) throws CQLException {
-        return ECQL.toFilter(buildCqlPredicate(cqlFilterTemplate, permissions));
+    /**
+     * Parses a numeric option, which may be specified either as a number or as a string.
+     * 
+     * @return the option value, or {@code 0} if the option is not specified
+     * @throws IllegalArgumentException if the value is not a non-negative number
+     */
+    static double getNonNegativeOption(Map<String, Object> options, String name) {
+        Object value = (options != null) ? options.get(name) : null;
+        if (value == null) {
+            return 0;
+        }
+        double result;
+        try {
+            result = (value instanceof Number) ? ((Number) value).doubleValue() : Double
+                    .parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option " + name + ": " + value,
+                    e);
+        }
+        if (!(result >= 0) || Double.isInfinite(result)) {
+            throw new IllegalArgumentException("Invalid value for option " + name + ": " + value);
+        }
+        return result;
     }
 
     /**
-     * Builds a CQL predicate by substituting a comma-separated list of permission tokens into the provided template.
+     * Parses a boolean option, which may be specified either as a boolean or as a string.
+     * 
+     * @return the option value, or {@code defaultValue} if the option is not specified
+     * @throws IllegalArgumentException if the value is neither {@code true} nor {@code false}
+     */
+    static boolean getBooleanOption(Map<String, Object> options, String name,
+            boolean defaultValue) {
+        Object value = (options != null) ? options.get(name) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        String text = value.toString().trim();
+        if ("true".equalsIgnoreCase(text)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(text)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid value for option " + name + ": " + value);
+    }
+
+    /**
+     * Builds a CQL filter by substituting a comma-separated list of permission tokens into the provided template.
      * 
      * <p>
-     * The CQL filter template uses the same format as the {@link MessageFormat} class.
+     * Filters are cached by template and permission set, see {@link AccessFilterCache#getFilter(FilterTemplate, List)}.
      * </p>
      * 
-     * @param cqlFilterTemplate the CQL filter template
+     * @param cqlFilterTemplate the compiled CQL filter template
      * @param permissions the user permissions
-     * @return a CQL predicate as a String
+     * @return the filter
+     * @throws CQLException if the filter cannot be parsed
      */
-    String buildCqlPredicate(String cqlFilterTemplate, List<String> permissions) {
-        String commaSeparatedPermissions = StringUtils.join(permissions, ",");
-
-        return MessageFormat.format(cqlFilterTemplate, commaSeparatedPermissions);
+    Filter buildCqlFilter(FilterTemplate cqlFilterTemplate, List<String> permissions)
+            throws CQLException {
+        return filterCache.getFilter(cqlFilterTemplate, permissions);
     }
 
     /**
@@ -348,22 +492,45 @@ public class DataAccessLimitsBuilder implements AccessLimitsBuilder {
         }
     }
 
+    /**
+     * Returns a token derived from the configuration this builder is bound to and from the user permissions.
+     * 
+     * <p>
+     * The token is computed once per permission set, and does not depend on the resource: all the resources this builder applies to are filtered
+     * the same way.
+     * </p>
+     * 
+     * <p>
+     * If user permissions cannot be retrieved, the token of the empty permission set (i.e. deny all) is returned.
+     * </p>
+     */
     @Override
     public String getDataSecurityToken(Authentication user, ResourceInfo resource) {
-        Filter accessFilter = getAccessFilter(user);
-        return new String(DigestUtils.md5Hex(accessFilter.toString()));
+        PermissionSet permissions = null;
+        try {
+            permissions = getPermissions(user);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not retrieve user permissions: denying access to all",
+                    e);
+            permissions = PermissionSet.EMPTY;
+        }
+        String token = dataSecurityTokens.getIfPresent(permissions);
+        if (token == null) {
+            token = DigestUtils.md5Hex(configurationDigest + "_" + permissions.getDigest());
+            dataSecurityTokens.put(permissions, token);
+        }
+        return token;
     }
 
     @Override
     public Map<String, Object> getOptions() {
-        return new HashMap<String, Object>(options);
+        return options;
     }
 
     @Override
-    public void setOptions(Map<String, Object> options) {
-        if (options != null) {
-            this.options = new HashMap<String, Object>(options);
-        }
+    public AccessLimitsBuilder bind(AccessLimitsBuilderConfiguration configuration) {
+        return new DataAccessLimitsBuilder(dataAccessAdapter, rasterFilterBuilder, filterCache,
+                configuration.getId(), configuration.getOptions());
     }
 
 }
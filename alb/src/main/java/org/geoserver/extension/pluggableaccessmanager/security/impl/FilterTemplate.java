@@ -0,0 +1,150 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.PropertyName;
+
+/**
+ * A CQL filter template, into which a comma-separated list of permission tokens is substituted.
+ *
+ * <p>
+ * The template uses the same format as the {@link MessageFormat} class. Tokens are raw permission values (see
+ * {@link org.geoserver.extension.pluggableaccessmanager.data.PermissionSet}) and are compared as string literals. Templates of the form
+ * {@code <attribute> IN (&#123;0&#125;)}, like the default one, are recognized once, when the template is compiled: filters are then built
+ * directly via a {@link FilterFactory2}, with no CQL text being generated nor parsed. The resulting filter is the same ECQL would produce, i.e. an
+ * {@link org.opengis.filter.Or} of {@link org.opengis.filter.PropertyIsEqualTo} comparisons, one for each token.
+ * </p>
+ *
+ * <p>
+ * Any other template is handled by substituting the tokens, quoted as CQL string literals, and parsing the CQL predicate.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and thread-safe; two templates are equal if their text is.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public final class FilterTemplate {
+
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    /** Matches {@code <attribute> IN ({0})} templates. */
+    private static final Pattern IN_TEMPLATE = Pattern.compile(
+            "\\s*([A-Za-z_][\\w.:\\-]*)\\s+IN\\s*\\(\\s*\\{0\\}\\s*\\)\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String template;
+
+    /** The attribute compared in {@code <attribute> IN ({0})} templates, {@code null} for any other template. */
+    private final PropertyName property;
+
+    private FilterTemplate(String template, PropertyName property) {
+        this.template = template;
+        this.property = property;
+    }
+
+    /**
+     * Compiles the specified template.
+     *
+     * @param template the CQL filter template
+     * @return the compiled template
+     */
+    public static FilterTemplate compile(String template) {
+        if (template == null) {
+            throw new IllegalArgumentException("CQL filter template must not be null");
+        }
+        Matcher matcher = IN_TEMPLATE.matcher(template);
+        PropertyName property = null;
+        if (matcher.matches()) {
+            property = FF.property(matcher.group(1));
+        }
+        return new FilterTemplate(template, property);
+    }
+
+    /**
+     * @return the template text
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return {@code true} if filters are built directly, without parsing
+     */
+    public boolean isStructured() {
+        return property != null;
+    }
+
+    /**
+     * Builds the filter for the specified permission tokens.
+     *
+     * @param permissions the permission tokens
+     * @return the filter
+     * @throws CQLException if the CQL predicate cannot be parsed
+     */
+    public Filter build(List<String> permissions) throws CQLException {
+        if (property != null) {
+            if (permissions.isEmpty()) {
+                // an empty IN list matches nothing
+                return Filter.EXCLUDE;
+            }
+            List<Filter> comparisons = new ArrayList<Filter>(permissions.size());
+            for (String token : permissions) {
+                comparisons.add(FF.equals(property, FF.literal(token)));
+            }
+            return FF.or(comparisons);
+        }
+        return ECQL.toFilter(buildCqlPredicate(permissions));
+    }
+
+    /**
+     * Builds a CQL predicate by substituting a comma-separated list of permission tokens, quoted as string literals, into this template.
+     *
+     * @param permissions the permission tokens
+     * @return a CQL predicate as a String
+     */
+    String buildCqlPredicate(List<String> permissions) {
+        List<String> literals = new ArrayList<String>(permissions.size());
+        for (String token : permissions) {
+            // embedded quotes are escaped by doubling them
+            literals.add("'" + token.replace("'", "''") + "'");
+        }
+        String commaSeparatedPermissions = StringUtils.join(literals, ",");
+
+        return MessageFormat.format(template, commaSeparatedPermissions);
+    }
+
+    @Override
+    public int hashCode() {
+        return template.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FilterTemplate)) {
+            return false;
+        }
+        return template.equals(((FilterTemplate) obj).template);
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterKey;
+import org.geotools.feature.NameImpl;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+
+/**
+ * The arguments of a raster filter build, in a form which can be persisted and replayed later, e.g. to warm up the raster filters cache after a
+ * restart (see {@link CacheWarmUp}).
+ *
+ * <p>
+ * The resource is referenced by id and the mask layer filter is kept in ECQL form.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public final class RasterFilterRequest {
+
+    private final RasterFilterKey key;
+
+    private final String resourceId;
+
+    private final String maskFilter;
+
+    /**
+     * Constructor.
+     *
+     * @param key the raster filter key
+     * @param resourceId the id of the resource the raster filter was built for
+     * @param maskFilter the filter applied to the mask layer ({@code null} to select all features)
+     */
+    public RasterFilterRequest(RasterFilterKey key, String resourceId, Filter maskFilter) {
+        if (key == null || resourceId == null) {
+            throw new IllegalArgumentException("Both the key and the resource id must be set");
+        }
+        this.key = key;
+        this.resourceId = resourceId;
+        this.maskFilter = (maskFilter != null) ? ECQL.toCQL(maskFilter) : null;
+    }
+
+    /**
+     * Constructor, used to read back a persisted request.
+     *
+     * @param key the raster filter key
+     * @param resourceId the id of the resource the raster filter was built for
+     * @param maskFilter the filter applied to the mask layer, in ECQL form ({@code null} to select all features)
+     */
+    RasterFilterRequest(RasterFilterKey key, String resourceId, String maskFilter) {
+        if (key == null || resourceId == null) {
+            throw new IllegalArgumentException("Both the key and the resource id must be set");
+        }
+        this.key = key;
+        this.resourceId = resourceId;
+        this.maskFilter = maskFilter;
+    }
+
+    /**
+     * @return the raster filter key
+     */
+    public RasterFilterKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return the id of the resource the raster filter was built for
+     */
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * @return the name of the mask layer
+     */
+    public Name getMaskLayerName() {
+        String rawName = key.getMaskLayerName();
+        int colonIdx = rawName.indexOf(":");
+        return (colonIdx >= 0) ? new NameImpl(rawName.substring(0, colonIdx),
+                rawName.substring(colonIdx + 1)) : new NameImpl(rawName);
+    }
+
+    /**
+     * @return the filter applied to the mask layer, {@code null} if all features are selected
+     * @throws CQLException if the filter cannot be parsed back
+     */
+    public Filter getMaskFilter() throws CQLException {
+        return (maskFilter != null) ? ECQL.toFilter(maskFilter) : null;
+    }
+
+    /**
+     * @return the filter applied to the mask layer in ECQL form, {@code null} if all features are selected
+     */
+    String getMaskFilterText() {
+        return maskFilter;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * key.hashCode() + resourceId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RasterFilterRequest)) {
+            return false;
+        }
+        RasterFilterRequest other = (RasterFilterRequest) obj;
+        return key.equals(other.key) && resourceId.equals(other.resourceId);
+    }
+
+    @Override
+    public String toString() {
+        return "RasterFilterRequest [resourceId=" + resourceId + ", key=" + key + "]";
+    }
+
+}
@@ -0,0 +1,239 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Post-processes the polygons selected in a raster mask layer before they are used as a raster filter.
+ *
+ * <p>
+ * Processing consists of three steps:
+ * <ol>
+ * <li>overlapping and adjacent parts are dissolved with a cascaded union;</li>
+ * <li>the result is optionally simplified, preserving its topology, and clipped to the dissolved area, so that simplification never grants
+ * access outside of it;</li>
+ * <li>parts smaller than a minimum area (slivers) are optionally dropped.</li>
+ * </ol>
+ * </p>
+ *
+ * <p>
+ * Polygons can be processed as they are read, see {@link #newAccumulator()}.
+ * </p>
+ *
+ * <p>
+ * The number of vertices before and after processing is recorded, to allow monitoring the effectiveness of the processing. Instances are
+ * thread-safe.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+final class RasterMaskProcessor {
+
+    private static final Logger LOGGER = Logging.getLogger(RasterMaskProcessor.class);
+
+    /** Number of parts collected before they are dissolved into the accumulated area. */
+    static final int BATCH_SIZE = 1000;
+
+    private final AtomicLong processedCount = new AtomicLong();
+
+    private final AtomicLong inputVertexCount = new AtomicLong();
+
+    private final AtomicLong outputVertexCount = new AtomicLong();
+
+    /**
+     * Processes the specified polygons.
+     *
+     * @param parts the polygons selected in the mask layer
+     * @param simplifyTolerance the distance tolerance used to simplify the area ({@code 0} to disable simplification)
+     * @param minArea parts smaller than this are dropped ({@code 0} to keep all parts)
+     * @return the processed area, or {@code null} if no part is left
+     */
+    MultiPolygon process(List<Polygon> parts, double simplifyTolerance, double minArea) {
+        Accumulator accumulator = newAccumulator();
+        for (Polygon part : parts) {
+            accumulator.add(part);
+        }
+        return accumulator.finish(simplifyTolerance, minArea);
+    }
+
+    /**
+     * Creates an accumulator, to process polygons as they are read.
+     *
+     * @return a new accumulator
+     */
+    Accumulator newAccumulator() {
+        return new Accumulator();
+    }
+
+    /**
+     * Collects polygons and dissolves them in batches of {@link RasterMaskProcessor#BATCH_SIZE}, so that only the dissolved area and the current
+     * batch are kept in memory. Not thread-safe.
+     */
+    final class Accumulator {
+
+        private final List<Polygon> batch = new ArrayList<Polygon>();
+
+        /** The dissolved area so far ({@code null} if no batch has been dissolved yet). */
+        private Geometry area;
+
+        /** Set if dissolving failed: parts are then kept as they are. */
+        private List<Polygon> undissolved;
+
+        private int inputParts;
+
+        private int inputVertices;
+
+        private Accumulator() {
+        }
+
+        /**
+         * Adds a polygon to the area.
+         *
+         * @param part the polygon
+         */
+        void add(Polygon part) {
+            inputParts++;
+            inputVertices += part.getNumPoints();
+            batch.add(part);
+            if (batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (undissolved == null) {
+                List<Polygon> parts = new ArrayList<Polygon>(batch);
+                if (area != null) {
+                    addPolygons(area, parts);
+                }
+                try {
+                    area = CascadedPolygonUnion.union(parts);
+                } catch (TopologyException e) {
+                    LOGGER.log(Level.WARNING,
+                            "Failed to dissolve the raster mask geometries, using them as they are",
+                            e);
+                    undissolved = parts;
+                    area = null;
+                }
+            } else {
+                undissolved.addAll(batch);
+            }
+            batch.clear();
+        }
+
+        /**
+         * Completes processing.
+         *
+         * @param simplifyTolerance the distance tolerance used to simplify the area ({@code 0} to disable simplification)
+         * @param minArea parts smaller than this are dropped ({@code 0} to keep all parts)
+         * @return the processed area, or {@code null} if no part is left
+         */
+        MultiPolygon finish(double simplifyTolerance, double minArea) {
+            if (inputParts == 0) {
+                return null;
+            }
+            flush();
+            Geometry result = (undissolved != null) ? toMultiPolygon(undissolved) : area;
+            if (simplifyTolerance > 0) {
+                result = simplify(result, simplifyTolerance);
+            }
+
+            List<Polygon> parts = new ArrayList<Polygon>(result.getNumGeometries());
+            for (int i = 0; i < result.getNumGeometries(); i++) {
+                Geometry part = result.getGeometryN(i);
+                if (part instanceof Polygon && !part.isEmpty() && part.getArea() >= minArea) {
+                    parts.add((Polygon) part);
+                }
+            }
+            MultiPolygon processed = parts.isEmpty() ? null : toMultiPolygon(parts);
+
+            int outputVertices = (processed != null) ? processed.getNumPoints() : 0;
+            processedCount.incrementAndGet();
+            inputVertexCount.addAndGet(inputVertices);
+            outputVertexCount.addAndGet(outputVertices);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE,
+                        "Raster mask processed: {0} parts, {1} vertices -> {2} parts, {3} vertices",
+                        new Object[] { inputParts, inputVertices, parts.size(), outputVertices });
+            }
+            return processed;
+        }
+
+    }
+
+    /**
+     * Simplifies the area, then clips the result to the area: simplification can move the boundary outward by up to the tolerance.
+     */
+    private static Geometry simplify(Geometry area, double tolerance) {
+        Geometry simplified = TopologyPreservingSimplifier.simplify(area, tolerance);
+        try {
+            return simplified.intersection(area);
+        } catch (TopologyException e) {
+            LOGGER.log(Level.WARNING,
+                    "Failed to clip the simplified raster mask geometries, using them unsimplified", e);
+            return area;
+        }
+    }
+
+    private static void addPolygons(Geometry geometry, List<Polygon> parts) {
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Geometry part = geometry.getGeometryN(i);
+            if (part instanceof Polygon && !part.isEmpty()) {
+                parts.add((Polygon) part);
+            }
+        }
+    }
+
+    private static MultiPolygon toMultiPolygon(List<Polygon> parts) {
+        return parts.get(0).getFactory().createMultiPolygon(parts.toArray(new Polygon[parts.size()]));
+    }
+
+    /**
+     * @return the number of processed masks
+     */
+    long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * @return the total number of vertices of the processed masks, before processing
+     */
+    long getInputVertexCount() {
+        return inputVertexCount.get();
+    }
+
+    /**
+     * @return the total number of vertices of the processed masks, after processing
+     */
+    long getOutputVertexCount() {
+        return outputVertexCount.get();
+    }
+
+    /**
+     * @return the fraction of vertices removed by processing, between {@code 0} and {@code 1} ({@code 0} if nothing has been processed yet)
+     */
+    double getVertexReduction() {
+        long input = inputVertexCount.get();
+        if (input == 0) {
+            return 0;
+        }
+        return Math.max(0, 1 - (double) outputVertexCount.get() / input);
+    }
+
+}
@@ -1,14 +1,27 @@
 package org.geoserver.extension.pluggableaccessmanager.data.impl;
 
+import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.PERMISSIONS_CACHE;
 import static org.geoserver.security.KeyAuthenticationToken.DEFAULT_URL_PARAM;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import it.geosolutions.geoserver.security.gwc.dispatch.DataSecurityTokenCache;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
 
 import org.apache.commons.lang.StringUtils;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
 import org.geoserver.extension.pluggableaccessmanager.data.impl.CachingDataAccessAdapter;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
@@ -18,6 +31,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
 import org.springframework.context.ApplicationContext;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -100,9 +114,214 @@ public class CachingDataAccessAdapterTest {
         // login bob, the second time
         Authentication bobSecond = loginBob("session-bob-2");
         // ask permissions for user bob --> cache miss
-        permissions = cachingDataAccess.getUserPermissions(bobSecond);
-        checkPermissions(PERMISSIONS_BOB, permissions);
+        List<String> secondPermissions = cachingDataAccess.getUserPermissions(bobSecond);
+        checkPermissions(PERMISSIONS_BOB, secondPermissions);
+        assertEquals(2, cachingDataAccess.getCountCachedMethodCalls());
+        // both sessions share the same permission set instance
+        assertSame(permissions, secondPermissions);
+    }
+
+    @Test
+    public void testPreloadPermissions() throws IOException {
+        Map<String, PermissionSet> preloaded = cachingDataAccess.preloadPermissions(Arrays.asList(
+                "bob", "alice", "nobody"));
+        assertEquals(3, preloaded.size());
+        checkPermissions(PERMISSIONS_BOB, preloaded.get("bob"));
+        checkPermissions(PERMISSIONS_ALICE, preloaded.get("alice"));
+        assertSame(PermissionSet.EMPTY, preloaded.get("nobody"));
+
+        // preloaded permissions are served on cache miss
+        assertSame(preloaded.get("bob"), cachingDataAccess.getUserPermissions(loginBob("session-bob")));
+        assertSame(preloaded.get("alice"),
+                cachingDataAccess.getUserPermissions(loginAlice("session-alice")));
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        cachingDataAccess.setRefreshAhead(true);
+        try {
+            long refreshes = cachingDataAccess.getRefreshCount();
+            List<String> permissions = cachingDataAccess.getUserPermissions(loginBob("session-bob-1"));
+            checkPermissions(PERMISSIONS_BOB, permissions);
+            assertEquals(refreshes, cachingDataAccess.getRefreshCount());
+
+            // cache miss --> recently loaded permissions are served, and reloaded in the background
+            List<String> secondPermissions = cachingDataAccess
+                    .getUserPermissions(loginBob("session-bob-2"));
+            assertSame(permissions, secondPermissions);
+            assertEquals(2, cachingDataAccess.getCountCachedMethodCalls());
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cachingDataAccess.getRefreshCount() == refreshes
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(refreshes + 1, cachingDataAccess.getRefreshCount());
+        } finally {
+            cachingDataAccess.setRefreshAhead(false);
+        }
+    }
+
+    @Test
+    public void testRefreshAheadOfExpiration() throws Exception {
+        Ehcache permissionsCache = (Ehcache) applicationContext.getBean(CacheManager.class)
+                .getCache(PERMISSIONS_CACHE).getNativeCache();
+        cachingDataAccess.setRefreshAhead(true);
+        cachingDataAccess.setRefreshAheadFraction(0.01);
+        try {
+            Authentication bob = loginBob("session-bob");
+            long refreshes = cachingDataAccess.getRefreshCount();
+            List<String> permissions = cachingDataAccess.getUserPermissions(bob);
+            Element cached = permissionsCache.getQuiet("session-bob");
+            assertNotNull(cached);
+
+            // past the refresh-ahead fraction of the time to live --> reloaded and written back
+            Thread.sleep(200);
+            cachingDataAccess.refreshIfDue(bob);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cachingDataAccess.getRefreshCount() == refreshes
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(refreshes + 1, cachingDataAccess.getRefreshCount());
+            Element refreshed = permissionsCache.getQuiet("session-bob");
+            assertTrue(refreshed.getCreationTime() > cached.getCreationTime());
+            assertEquals(permissions, refreshed.getObjectValue());
+
+            // still served by the cache
+            checkPermissions(PERMISSIONS_BOB, cachingDataAccess.getUserPermissions(bob));
+            assertEquals(1, cachingDataAccess.getCountCachedMethodCalls());
+        } finally {
+            cachingDataAccess.setRefreshAheadFraction(0.75);
+            cachingDataAccess.setRefreshAhead(false);
+        }
+    }
+
+    @Test
+    public void testRefreshAheadNotWrittenBackAfterEviction() throws IOException {
+        // not proxied, fields are those of the instance
+        CachingDataAccessAdapter adapter = new CachingDataAccessAdapter();
+        adapter.setProvider(cachingDataAccess.getProvider());
+        adapter.setCacheManager(applicationContext.getBean(CacheManager.class));
+        Ehcache permissionsCache = adapter.refresher.permissionsCache;
+        assertNotNull(permissionsCache);
+
+        long generation = adapter.generations.current();
+        adapter.clearCacheEntry("session-bob");
+        adapter.refresher.writeBack("session-bob", "bob", PermissionSet.of("105"), generation);
+        assertNull(permissionsCache.getQuiet("session-bob"));
+
+        adapter.refresher.writeBack("session-bob", "bob", PermissionSet.of("105"),
+                adapter.generations.current());
+        assertEquals(PermissionSet.of("105"), permissionsCache.getQuiet("session-bob")
+                .getObjectValue());
+    }
+
+    @Test
+    public void testLoadPredatingEvictionNotKept() throws IOException {
+        // not proxied, fields are those of the instance
+        CachingDataAccessAdapter adapter = new CachingDataAccessAdapter();
+        adapter.setProvider(cachingDataAccess.getProvider());
+        adapter.setRefreshAhead(true);
+
+        long generation = adapter.generations.current();
+        adapter.clearCacheEntry("bob");
+        assertTrue(adapter.generations.isEvictedSince("bob", generation));
+        assertFalse(adapter.generations.isEvictedSince("alice", generation));
+
+        // a load started before the eviction doesn't seed refresh-ahead
+        adapter.loadPermissions("bob", generation);
+        assertNull(adapter.refresher.recentPermissions.getIfPresent("bob"));
+
+        // a load started after the eviction does
+        adapter.loadPermissions("bob", adapter.generations.current());
+        checkPermissions(PERMISSIONS_BOB, adapter.refresher.recentPermissions.getIfPresent("bob"));
+
+        generation = adapter.generations.current();
+        adapter.clearAllCacheEntries();
+        assertTrue(adapter.generations.isEvictedSince("alice", generation));
+    }
+
+    @Test
+    public void testEvictionByKey() throws IOException {
+        // not proxied, fields are those of the instance
+        CachingDataAccessAdapter adapter = new CachingDataAccessAdapter();
+        adapter.setProvider(cachingDataAccess.getProvider());
+        adapter.setRefreshAhead(true);
+
+        assertFalse(adapter.isKeyAuthenticationUsed());
+        adapter.getUserPermissions(loginBob("session-bob"));
+        assertTrue(adapter.isKeyAuthenticationUsed());
+        checkPermissions(PERMISSIONS_BOB, adapter.refresher.recentPermissions.getIfPresent("bob"));
+        assertNotNull(adapter.revalidator.versionedPermissions.getIfPresent("bob"));
+
+        // evicting the session evicts the permissions kept by user name too
+        long generation = adapter.generations.current();
+        adapter.clearCacheEntry("session-bob");
+        assertNull(adapter.refresher.recentPermissions.getIfPresent("bob"));
+        assertNull(adapter.revalidator.versionedPermissions.getIfPresent("bob"));
+        assertTrue(adapter.generations.isEvictedSince("bob", generation));
+    }
+
+    @Test
+    public void testEvictionByUserName() throws IOException {
+        Authentication firstSession = loginBob("session-bob-1");
+        Authentication secondSession = loginBob("session-bob-2");
+        cachingDataAccess.getUserPermissions(firstSession);
+        cachingDataAccess.getUserPermissions(secondSession);
+        assertEquals(2, cachingDataAccess.getCountCachedMethodCalls());
+
+        // permissions are cached by authentication key, evicting the user evicts all of them
+        cachingDataAccess.clearCacheEntry("bob");
+        cachingDataAccess.getUserPermissions(firstSession);
+        cachingDataAccess.getUserPermissions(secondSession);
+        assertEquals(4, cachingDataAccess.getCountCachedMethodCalls());
+
+        // other users are not affected
+        cachingDataAccess.getUserPermissions(loginAlice("session-alice"));
+        cachingDataAccess.clearCacheEntry("bob");
+        cachingDataAccess.getUserPermissions(loginAlice("session-alice"));
+        assertEquals(5, cachingDataAccess.getCountCachedMethodCalls());
+    }
+
+    @Test
+    public void testRevalidation() throws IOException {
+        long revalidations = cachingDataAccess.getRevalidatedCount();
+        List<String> permissions = cachingDataAccess.getUserPermissions(loginBob("session-bob-1"));
+        assertEquals(revalidations, cachingDataAccess.getRevalidatedCount());
+
+        // cache miss --> version stamp unchanged, permissions are not fetched again
+        assertSame(permissions, cachingDataAccess.getUserPermissions(loginBob("session-bob-2")));
         assertEquals(2, cachingDataAccess.getCountCachedMethodCalls());
+        assertEquals(revalidations + 1, cachingDataAccess.getRevalidatedCount());
+
+        // evicted entries are fetched again
+        cachingDataAccess.clearCacheEntry("bob");
+        cachingDataAccess.getUserPermissions(loginBob("session-bob-3"));
+        assertEquals(revalidations + 1, cachingDataAccess.getRevalidatedCount());
+    }
+
+    @Test
+    public void testDataSecurityTokensEvictedWithPermissions() throws IOException {
+        DataSecurityTokenCache tokenCache = applicationContext.getBean(DataSecurityTokenCache.class);
+
+        Authentication bob = loginBob("session-bob");
+        Map<String, String> tokens = tokenCache.getUserTokens(bob);
+        tokens.put("layer", "token");
+        // same map is returned for the same session
+        assertSame(tokens, tokenCache.getUserTokens(bob));
+        // a different session has its own tokens
+        Authentication alice = loginAlice("session-alice");
+        assertTrue(tokenCache.getUserTokens(alice).isEmpty());
+
+        // evicting the permissions evicts the tokens too
+        cachingDataAccess.clearCacheEntry("session-bob");
+        assertNotSame(tokens, tokenCache.getUserTokens(bob));
+        assertTrue(tokenCache.getUserTokens(bob).isEmpty());
+
+        // loading the permissions again evicts the tokens derived from the previous ones
+        tokenCache.getUserTokens(bob).put("layer", "token");
+        cachingDataAccess.getUserPermissions(bob);
+        assertTrue(tokenCache.getUserTokens(bob).isEmpty());
     }
 
     private void checkPermissions(String expected, List<String> permissions) {
@@ -0,0 +1,89 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.geoserver.extension.pluggableaccessmanager.data.EvictableCache;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+import org.junit.Test;
+
+public class PermissionInvalidatorTest {
+
+    private static class QueuedChangeSource implements PermissionChangeSource {
+
+        final Queue<Object> results = new LinkedList<Object>();
+
+        @Override
+        public Set<String> poll() throws IOException {
+            Object result = results.remove();
+            if (result instanceof IOException) {
+                throw (IOException) result;
+            }
+            @SuppressWarnings("unchecked")
+            Set<String> users = (Set<String>) result;
+            return users;
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    private static class RecordingCache implements EvictableCache {
+
+        final List<String> evicted = new ArrayList<String>();
+
+        int fullEvictions;
+
+        @Override
+        public boolean clearCacheEntry(String key) {
+            evicted.add(key);
+            return true;
+        }
+
+        @Override
+        public boolean clearAllCacheEntries() {
+            fullEvictions++;
+            return true;
+        }
+    }
+
+    @Test
+    public void testEvictChangedUsers() {
+        QueuedChangeSource source = new QueuedChangeSource();
+        RecordingCache cache = new RecordingCache();
+        PermissionInvalidator invalidator = new PermissionInvalidator(source,
+                Collections.<EvictableCache> singletonList(cache));
+
+        // first poll, nothing to evict
+        source.results.add(null);
+        invalidator.poll();
+        assertEquals(0, cache.fullEvictions);
+
+        source.results.add(new HashSet<String>(Arrays.asList("bob")));
+        invalidator.poll();
+        assertEquals(Arrays.asList("bob"), cache.evicted);
+        assertEquals(1, invalidator.getEvictedCount());
+
+        // failures are only logged
+        source.results.add(new IOException("connection lost"));
+        invalidator.poll();
+
+        // changes may have been missed
+        source.results.add(null);
+        invalidator.poll();
+        assertEquals(1, cache.fullEvictions);
+        assertEquals(1, invalidator.getFullEvictionCount());
+        assertEquals(1, cache.evicted.size());
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsCoalesced() throws Exception {
+        final SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> loader = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                return new Object();
+            }
+        };
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return singleFlight.load("bob", loader);
+                    }
+                }));
+            }
+            // wait for all the callers to join the load in flight
+            long deadline = System.currentTimeMillis() + 10000;
+            while (singleFlight.getCoalescedCount() < threads - 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            Object first = results.get(0).get();
+            for (Future<Object> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, singleFlight.getLoadCount());
+        assertEquals(threads - 1, singleFlight.getCoalescedCount());
+
+        // completed loads are not retained
+        singleFlight.load("bob", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return "reloaded";
+            }
+        });
+        assertEquals(2, singleFlight.getLoadCount());
+    }
+
+    @Test
+    public void testForget() throws Exception {
+        final SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> first = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return singleFlight.load("bob", new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            started.countDown();
+                            release.await(10, TimeUnit.SECONDS);
+                            return "outdated";
+                        }
+                    });
+                }
+            });
+            started.await(10, TimeUnit.SECONDS);
+
+            // following callers don't join the forgotten load
+            singleFlight.forget("bob");
+            assertEquals("current", singleFlight.load("bob", new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "current";
+                }
+            }));
+            release.countDown();
+            assertEquals("outdated", first.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, singleFlight.getLoadCount());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void testFailurePropagated() throws Exception {
+        SingleFlight<String, Object> singleFlight = new SingleFlight<String, Object>();
+        try {
+            singleFlight.load("bob", new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    throw new IOException("boom");
+                }
+            });
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        // failed loads are not retained either
+        assertEquals("ok", singleFlight.load("bob", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return "ok";
+            }
+        }));
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.geoserver.extension.pluggableaccessmanager.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.feature.NameImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import org.opengis.feature.type.Name;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+public class RasterFilterKeyTest {
+
+    private static final Name MASK = new NameImpl("cite", "mask");
+
+    private static final String FILTER = "service_id IN ({0})";
+
+    @Test
+    public void testSharedAcrossEqualPermissions() {
+        RasterFilterKey first = new RasterFilterKey(PermissionSet.of("105", "106"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84);
+        RasterFilterKey second = new RasterFilterKey(PermissionSet.of("106", "105"),
+                new NameImpl("cite", "mask"), FILTER, DefaultGeographicCRS.WGS84);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void testDistinctComponents() throws Exception {
+        RasterFilterKey key = new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84);
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("106"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84)));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), new NameImpl("cite",
+                "other"), FILTER, DefaultGeographicCRS.WGS84)));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK,
+                "area_id IN ({0})", DefaultGeographicCRS.WGS84)));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER, CRS
+                .decode("EPSG:3857"))));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER, null)));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84, new ReferencedEnvelope(0, 10, 0, 10,
+                        DefaultGeographicCRS.WGS84), 0, 0)));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84, null, 0.1, 0)));
+    }
+
+    @Test
+    public void testNativeKey() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(0, 10, 0, 10,
+                DefaultGeographicCRS.WGS84);
+        RasterFilterKey key = new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84, bounds, 0.1, 1);
+        RasterFilterKey nativeKey = key.getNativeKey();
+        assertFalse(key.equals(nativeKey));
+        assertEquals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER, null, bounds,
+                0.1, 1), nativeKey);
+    }
+
+    @Test
+    public void testUnboundedKeySharedAcrossResources() {
+        RasterFilterKey unbounded = new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84, null, 0, 0);
+        assertFalse(unbounded.isBounded());
+        assertEquals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84), unbounded);
+        assertTrue(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84, new ReferencedEnvelope(0, 10, 0, 10,
+                        DefaultGeographicCRS.WGS84), 0, 0).isBounded());
+    }
+
+    @Test
+    public void testUnformattableCrs() {
+        CoordinateReferenceSystem first = new UnformattableCRS();
+        CoordinateReferenceSystem second = new UnformattableCRS();
+        RasterFilterKey key = new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER, first);
+        assertEquals(key, new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER, first));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER, second)));
+        assertFalse(key.equals(new RasterFilterKey(PermissionSet.of("105"), MASK, FILTER,
+                DefaultGeographicCRS.WGS84)));
+    }
+
+    @SuppressWarnings("serial")
+    static class UnformattableCRS extends DefaultGeographicCRS {
+
+        UnformattableCRS() {
+            super(DefaultGeographicCRS.WGS84);
+        }
+
+        @Override
+        public String toWKT() {
+            throw new UnsupportedOperationException("Not a valid WKT");
+        }
+    }
+
+}
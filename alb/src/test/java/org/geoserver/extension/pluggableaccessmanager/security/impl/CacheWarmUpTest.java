@@ -0,0 +1,166 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import static org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults.PERMISSIONS_CACHE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geoserver.extension.pluggableaccessmanager.data.impl.CachingDataAccessAdapter;
+import org.geoserver.extension.pluggableaccessmanager.security.RasterFilterKey;
+import org.geoserver.security.impl.GeoServerUser;
+import org.geotools.feature.NameImpl;
+import org.geotools.filter.text.ecql.ECQL;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = "classpath:/testApplicationContext.xml")
+public class CacheWarmUpTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Autowired
+    private CachingDataAccessAdapter cachingDataAccess;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    private File configDir;
+
+    @Before
+    public void beforeTest() throws Exception {
+        configDir = new File("./target/cache-warmup");
+        new File(configDir, CacheWarmUp.SNAPSHOT_FILE_NAME).delete();
+        cachingDataAccess.clearAllCacheEntries();
+    }
+
+    private Authentication login(String userName) {
+        GeoServerUser user = new GeoServerUser(userName);
+        return new UsernamePasswordAuthenticationToken(user, null, user.getAuthorities());
+    }
+
+    private CacheWarmUp newWarmUp() {
+        CacheWarmUp warmUp = new CacheWarmUp(configDir, cachingDataAccess, null, null);
+        warmUp.setCacheManager(cacheManager);
+        return warmUp;
+    }
+
+    @Test
+    public void testWarmUpFromSnapshot() throws Exception {
+        cachingDataAccess.getUserPermissions(login("bob"));
+        cachingDataAccess.getUserPermissions(login("alice"));
+
+        // shutdown
+        newWarmUp().destroy();
+        assertTrue(new File(configDir, CacheWarmUp.SNAPSHOT_FILE_NAME).isFile());
+        cachingDataAccess.clearAllCacheEntries();
+
+        // restart
+        CacheWarmUp warmUp = newWarmUp();
+        warmUp.warmUp(DIRECT_EXECUTOR);
+        assertTrue(warmUp.getWarmedUserCount() >= 2);
+        // cache entries would expire before the preloaded permissions, which are served on the first miss instead
+        assertFalse(CacheWarmUp.outlivesPreload(cacheManager.getCache(PERMISSIONS_CACHE)));
+        assertNull(cacheManager.getCache(PERMISSIONS_CACHE).get("bob"));
+
+        assertEquals(2, cachingDataAccess.getUserPermissions(login("bob")).size());
+        assertEquals(1, cachingDataAccess.getUserPermissions(login("alice")).size());
+    }
+
+    @Test
+    public void testSnapshotSize() throws Exception {
+        cachingDataAccess.getUserPermissions(login("sam"));
+        newWarmUp().destroy();
+
+        CacheWarmUp warmUp = newWarmUp();
+        warmUp.warmUp(DIRECT_EXECUTOR);
+        warmUp.setMaxUsers(1000);
+        assertTrue(warmUp.takeSnapshot().users.contains("sam"));
+
+        warmUp.setMaxUsers(0);
+        assertTrue(warmUp.takeSnapshot().users.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotFormat() throws Exception {
+        RasterFilterKey key = new RasterFilterKey(PermissionSet.of("'105'"), new NameImpl("test",
+                "mask"), "permission IN (%s)", null);
+        CacheWarmUp.Snapshot snapshot = new CacheWarmUp.Snapshot();
+        snapshot.keyAuthentication = true;
+        snapshot.users.add("bob");
+        snapshot.rasterFilters.add(new RasterFilterRequest(key, "resource-1", ECQL
+                .toFilter("permission IN ('105')")));
+        snapshot.rasterFilters.add(new RasterFilterRequest(key, "resource-2", null));
+        File file = new File(configDir, CacheWarmUp.SNAPSHOT_FILE_NAME);
+        snapshot.write(file);
+
+        CacheWarmUp.Snapshot read = CacheWarmUp.Snapshot.read(file);
+        assertTrue(read.keyAuthentication);
+        assertEquals(snapshot.users, read.users);
+        assertEquals(snapshot.rasterFilters, read.rasterFilters);
+        assertEquals(key, read.rasterFilters.get(0).getKey());
+        assertEquals(new NameImpl("test", "mask"), read.rasterFilters.get(0).getMaskLayerName());
+        assertEquals(ECQL.toCQL(ECQL.toFilter("permission IN ('105')")),
+                ECQL.toCQL(read.rasterFilters.get(0).getMaskFilter()));
+        assertNull(read.rasterFilters.get(1).getMaskFilter());
+        // same key, different resources
+        assertFalse(read.rasterFilters.get(0).hashCode() == read.rasterFilters.get(1).hashCode());
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        File file = new File(configDir, CacheWarmUp.SNAPSHOT_FILE_NAME);
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(CacheWarmUp.SNAPSHOT_VERSION);
+            out.writeInt(-5);
+        } finally {
+            out.close();
+        }
+        try {
+            CacheWarmUp.Snapshot.read(file);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // written by another version
+        out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(CacheWarmUp.SNAPSHOT_VERSION + 1);
+        } finally {
+            out.close();
+        }
+        assertNull(CacheWarmUp.Snapshot.read(file));
+    }
+
+    @Test
+    public void testMissingSnapshot() throws Exception {
+        CacheWarmUp warmUp = newWarmUp();
+        warmUp.warmUp(DIRECT_EXECUTOR);
+        assertEquals(0, warmUp.getWarmedUserCount());
+    }
+
+}
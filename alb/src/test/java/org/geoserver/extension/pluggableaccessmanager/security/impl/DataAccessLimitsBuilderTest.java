@@ -3,6 +3,7 @@ package org.geoserver.extension.pluggableaccessmanager.security.impl;
 import static it.geosolutions.geoserver.security.impl.PluggableAccessManagerTestUtils.copyConfigurationFile;
 import static it.geosolutions.geoserver.security.impl.PluggableAccessManagerTestUtils.getLoggedInUser;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -12,6 +13,7 @@ import it.geosolutions.geoserver.security.impl.PluggableAccessManager;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 
 import org.geoserver.catalog.LayerInfo;
@@ -84,7 +86,7 @@ public class DataAccessLimitsBuilderTest extends GeoServerSystemTestSupport {
             // login as bob
             login("bob", "password");
 
-            final Filter BOB_FILTER = ECQL.toFilter("service_id IN (105, 106)");
+            final Filter BOB_FILTER = ECQL.toFilter("service_id IN ('105', '106')");
             LayerInfo roadSegments = getCatalog().getLayerByName(
                     new NameImpl(CiteTestData.ROAD_SEGMENTS));
             DataAccessLimits limits = accessManager.getAccessLimits(getLoggedInUser(), roadSegments);
@@ -100,10 +102,72 @@ public class DataAccessLimitsBuilderTest extends GeoServerSystemTestSupport {
         }
     }
 
+    @Test
+    public void testAccessFilterCache() throws CQLException {
+        final Filter BOB_FILTER = ECQL.toFilter("FID IN ('105','106')");
+
+        PluggableAccessManager accessManager = applicationContext
+                .getBean(PluggableAccessManager.class);
+        AccessFilterCache filterCache = applicationContext.getBean(AccessFilterCache.class);
+        assertNotNull(filterCache);
+        filterCache.clear();
+        long misses = filterCache.getMissCount();
+        long hits = filterCache.getHitCount();
+
+        login("bob", "password");
+        LayerInfo roadSegments = getCatalog().getLayerByName(
+                new NameImpl(CiteTestData.ROAD_SEGMENTS));
+        VectorAccessLimits limits = (VectorAccessLimits) accessManager.getAccessLimits(
+                getLoggedInUser(), roadSegments);
+        assertEquals(BOB_FILTER, limits.getReadFilter());
+        // first time this permission set is seen, filter is parsed
+        assertEquals(misses + 1, filterCache.getMissCount());
+        assertEquals(1, filterCache.getSize());
+
+        VectorAccessLimits cachedLimits = (VectorAccessLimits) accessManager.getAccessLimits(
+                getLoggedInUser(), roadSegments);
+        // no parsing this time, the very same filter instance is returned
+        assertEquals(misses + 1, filterCache.getMissCount());
+        assertEquals(hits + 1, filterCache.getHitCount());
+        assertTrue(limits.getReadFilter() == cachedLimits.getReadFilter());
+
+        // permission order does not matter
+        assertTrue(limits.getReadFilter() == filterCache.getFilter("FID IN ({0})",
+                Arrays.asList("106", "105", "106")));
+        assertEquals(1, filterCache.getSize());
+    }
+
+    @Test
+    public void testDataSecurityToken() {
+        PluggableAccessManager accessManager = applicationContext
+                .getBean(PluggableAccessManager.class);
+        LayerInfo roadSegments = getCatalog().getLayerByName(
+                new NameImpl(CiteTestData.ROAD_SEGMENTS));
+
+        login("bob", "password");
+        String bobToken = accessManager.getDataSecurityToken(getLoggedInUser(),
+                roadSegments.getResource());
+        assertNotNull(bobToken);
+        // token is stable, and is computed once per permission set
+        assertTrue(bobToken == accessManager.getDataSecurityToken(getLoggedInUser(),
+                roadSegments.getResource()));
+
+        logout();
+        login("alice", "password");
+        String aliceToken = accessManager.getDataSecurityToken(getLoggedInUser(),
+                roadSegments.getResource());
+        assertFalse(bobToken.equals(aliceToken));
+
+        logout();
+        login("bob", "password");
+        assertEquals(bobToken, accessManager.getDataSecurityToken(getLoggedInUser(),
+                roadSegments.getResource()));
+    }
+
     @Test
     public void testLayerAccess() throws CQLException {
-        final Filter BOB_FILTER = ECQL.toFilter("FID IN (105,106)");
-        final Filter ALICE_FILTER = ECQL.toFilter("FID IN (105)");
+        final Filter BOB_FILTER = ECQL.toFilter("FID IN ('105','106')");
+        final Filter ALICE_FILTER = ECQL.toFilter("FID IN ('105')");
 
         PluggableAccessManager accessManager = applicationContext
                 .getBean(PluggableAccessManager.class);
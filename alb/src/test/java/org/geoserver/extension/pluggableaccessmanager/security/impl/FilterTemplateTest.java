@@ -0,0 +1,55 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.junit.Test;
+import org.opengis.filter.Filter;
+
+public class FilterTemplateTest {
+
+    @Test
+    public void testInTemplateRecognized() {
+        assertTrue(FilterTemplate.compile("service_id IN ({0})").isStructured());
+        assertTrue(FilterTemplate.compile("  FID in ( {0} ) ").isStructured());
+        assertFalse(FilterTemplate.compile("service_id NOT IN ({0})").isStructured());
+        assertFalse(FilterTemplate.compile("service_id IN ({0}) AND active = 1").isStructured());
+        assertFalse(FilterTemplate.compile("INCLUDE").isStructured());
+    }
+
+    @Test
+    public void testStructuredFilterMatchesParsedFilter() throws CQLException {
+        FilterTemplate template = FilterTemplate.compile("service_id IN ({0})");
+
+        // tokens are raw values, compared as strings
+        assertEquals(ECQL.toFilter("service_id IN ('105','106')"),
+                template.build(Arrays.asList("105", "106")));
+        assertEquals(ECQL.toFilter("service_id IN ('a''b','c')"),
+                template.build(Arrays.asList("a'b", "c")));
+    }
+
+    @Test
+    public void testEmptyPermissions() throws CQLException {
+        FilterTemplate template = FilterTemplate.compile("service_id IN ({0})");
+
+        assertEquals(Filter.EXCLUDE, template.build(Collections.<String> emptyList()));
+    }
+
+    @Test
+    public void testFallbackToParsing() throws CQLException {
+        FilterTemplate template = FilterTemplate.compile("service_id IN ({0}) OR public = 1");
+
+        assertEquals(ECQL.toFilter("service_id IN ('105') OR public = 1"),
+                template.build(Arrays.asList("105")));
+        // tokens are quoted for the parser
+        assertEquals("service_id IN ('a''b','c') OR public = 1",
+                template.buildCqlPredicate(Arrays.asList("a'b", "c")));
+    }
+
+}
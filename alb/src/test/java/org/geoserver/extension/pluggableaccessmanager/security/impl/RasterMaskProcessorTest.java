@@ -0,0 +1,89 @@
+package org.geoserver.extension.pluggableaccessmanager.security.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class RasterMaskProcessorTest {
+
+    private final WKTReader reader = new WKTReader();
+
+    private Polygon polygon(String wkt) throws Exception {
+        return (Polygon) reader.read(wkt);
+    }
+
+    @Test
+    public void testUnion() throws Exception {
+        RasterMaskProcessor processor = new RasterMaskProcessor();
+        MultiPolygon area = processor.process(
+                Arrays.asList(polygon("POLYGON((0 0, 2 0, 2 2, 0 2, 0 0))"),
+                        polygon("POLYGON((1 0, 3 0, 3 2, 1 2, 1 0))"),
+                        polygon("POLYGON((10 10, 11 10, 11 11, 10 11, 10 10))")), 0, 0);
+        assertEquals(2, area.getNumGeometries());
+        assertEquals(7, area.getArea(), 1e-9);
+
+        assertEquals(1, processor.getProcessedCount());
+        assertEquals(15, processor.getInputVertexCount());
+        assertEquals(area.getNumPoints(), processor.getOutputVertexCount());
+        assertTrue(processor.getVertexReduction() > 0);
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        RasterMaskProcessor processor = new RasterMaskProcessor();
+        RasterMaskProcessor.Accumulator accumulator = processor.newAccumulator();
+        int count = RasterMaskProcessor.BATCH_SIZE * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            // adjacent unit squares along the x axis
+            accumulator.add(polygon("POLYGON((" + i + " 0, " + (i + 1) + " 0, " + (i + 1)
+                    + " 1, " + i + " 1, " + i + " 0))"));
+        }
+        MultiPolygon area = accumulator.finish(0, 0);
+        assertEquals(1, area.getNumGeometries());
+        assertEquals(count, area.getArea(), 1e-9);
+    }
+
+    @Test
+    public void testSimplify() throws Exception {
+        RasterMaskProcessor processor = new RasterMaskProcessor();
+        Polygon jagged = polygon("POLYGON((0 0, 5 -0.01, 10 0, 10 10, 5 10.01, 0 10, 0 0))");
+        MultiPolygon area = processor.process(Collections.singletonList(jagged), 0.1, 0);
+        assertEquals(5, area.getNumPoints());
+        assertTrue(jagged.covers(area));
+    }
+
+    @Test
+    public void testSimplifyNeverGrows() throws Exception {
+        RasterMaskProcessor processor = new RasterMaskProcessor();
+        // simplifying the notches would cover the area between them
+        Polygon original = polygon("POLYGON((0 0, 5 0.05, 10 0, 10 10, 5 9.95, 0 10, 0 0))");
+        MultiPolygon processed = processor.process(Collections.singletonList(original), 0.1, 0);
+        assertTrue(original.covers(processed));
+        assertEquals(original.getArea(), processed.getArea(), 1e-9);
+    }
+
+    @Test
+    public void testSlivers() throws Exception {
+        RasterMaskProcessor processor = new RasterMaskProcessor();
+        MultiPolygon area = processor.process(
+                Arrays.asList(polygon("POLYGON((0 0, 2 0, 2 2, 0 2, 0 0))"),
+                        polygon("POLYGON((10 10, 10.1 10, 10.1 10.1, 10 10.1, 10 10))")), 0, 0.5);
+        assertEquals(1, area.getNumGeometries());
+        assertEquals(4, area.getArea(), 1e-9);
+
+        assertNull(processor.process(
+                Collections.singletonList(polygon("POLYGON((0 0, 0.1 0, 0.1 0.1, 0 0.1, 0 0))")),
+                0, 0.5));
+        assertNull(processor.process(Collections.<Polygon> emptyList(), 0, 0));
+    }
+
+}
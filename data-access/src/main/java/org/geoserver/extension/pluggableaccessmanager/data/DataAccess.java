@@ -1,7 +1,8 @@
 package org.geoserver.extension.pluggableaccessmanager.data;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Provides a database abstraction interface.
@@ -12,13 +13,40 @@ import java.util.List;
 public interface DataAccess {
 
     /**
-     * Given a user name, retrieves a list of tokens identifying which permissions the specified user has been granted.
+     * Given a user name, retrieves a set of tokens identifying which permissions the specified user has been granted; tokens are the raw values
+     * read from the data source, not quoted.
      * 
      * @param login the user name
-     * @return a list of tokens conveying the information on which permissions have been granted
+     * @return a (canonical) set of tokens conveying the information on which permissions have been granted
      * @throws IOException
      */
-    public List<String> getUserPermissions(String login) throws IOException;
+    public PermissionSet getUserPermissions(String login) throws IOException;
+
+    /**
+     * Retrieves the permissions of several users at once, with as few round trips as possible.
+     * 
+     * @param logins the user names
+     * @return the (canonical) permission sets by user name; all the requested users are included, users with no permissions map to
+     *         {@link PermissionSet#EMPTY}
+     * @throws IOException
+     */
+    public Map<String, PermissionSet> getUserPermissions(Collection<String> logins)
+            throws IOException;
+
+    /**
+     * Returns a stamp identifying the current version of the permissions of the specified user; the stamp must change whenever the permissions
+     * of the user change, including when a grant is revoked (e.g. a per-user version counter, incremented by a trigger on insert, update and
+     * delete). The last modification time of the remaining grants is not a valid stamp, as it does not change when a grant is deleted.
+     * 
+     * <p>
+     * Stamps enable cheap revalidation of cached permissions: as long as the stamp does not change, the permissions need not be loaded again.
+     * </p>
+     * 
+     * @param login the user name
+     * @return the version stamp, or {@code null} if versioning is not supported
+     * @throws IOException
+     */
+    public String getPermissionsVersion(String login) throws IOException;
 
     /**
      * Disposes of the data access.
@@ -0,0 +1,36 @@
+package org.geoserver.extension.pluggableaccessmanager.data;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Source of permission changes, used to evict cached permissions as soon as grants change, instead of relying on short cache expiration times.
+ *
+ * <p>
+ * Sources are polled periodically by a single thread; implementations need not be thread-safe.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public interface PermissionChangeSource {
+
+    /**
+     * Returns the users whose permissions changed since the previous call.
+     *
+     * <p>
+     * The first call only establishes the starting point and returns {@code null}, as changes happened before may have been missed; so does any
+     * call following a failure which may have caused changes to be missed (e.g. a lost database connection).
+     * </p>
+     *
+     * @return the names of the users whose permissions changed (possibly empty), or {@code null} if the permissions of any user may have changed
+     * @throws IOException
+     */
+    public Set<String> poll() throws IOException;
+
+    /**
+     * Disposes of the source, releasing any resource held.
+     */
+    public void dispose();
+
+}
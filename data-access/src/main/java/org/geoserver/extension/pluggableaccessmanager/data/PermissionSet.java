@@ -0,0 +1,202 @@
+package org.geoserver.extension.pluggableaccessmanager.data;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Immutable set of permission tokens, as returned by {@link DataAccess#getUserPermissions(String)}.
+ *
+ * <p>
+ * Tokens are the raw values read from the data source, i.e. they are not quoted; quoting, if needed at all, is up to the code building filters
+ * from them.
+ * </p>
+ *
+ * <p>
+ * Tokens are sorted, deduplicated and interned, and the hash code is computed once. Instances are canonical: {@link #of(Collection)} returns the
+ * same instance for equal token sets, as long as it is referenced somewhere, so that users which have been granted the same permissions share a
+ * single instance (and its tokens) across sessions.
+ * </p>
+ *
+ * <p>
+ * A stable {@link #getDigest() digest} of the tokens is computed on first use and kept along with the set.
+ * </p>
+ *
+ * <p>
+ * The set is exposed as a {@link java.util.List} for compatibility with code expecting a list of tokens; any attempt to modify it throws an
+ * {@link UnsupportedOperationException}.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public final class PermissionSet extends AbstractList<String> implements RandomAccess,
+        Serializable {
+
+    private static final long serialVersionUID = -2425380862137302317L;
+
+    /** Pool of canonical instances, lock free for lookups of existing instances. */
+    private static final Interner<PermissionSet> POOL = Interners.newWeakInterner();
+
+    /** The empty permission set. */
+    public static final PermissionSet EMPTY = new PermissionSet(new String[0]);
+
+    /** Sorted, distinct, interned tokens. */
+    private final String[] tokens;
+
+    private final int hash;
+
+    /** Hex encoded digest of the tokens, computed lazily. */
+    private transient volatile String digest;
+
+    private PermissionSet(String[] tokens) {
+        this.tokens = tokens;
+        this.hash = Arrays.hashCode(tokens);
+    }
+
+    /**
+     * Returns the canonical permission set holding the specified tokens.
+     *
+     * <p>
+     * {@code null} tokens are ignored, duplicates are removed.
+     * </p>
+     *
+     * @param tokens the permission tokens
+     * @return the permission set
+     */
+    public static PermissionSet of(Collection<String> tokens) {
+        if (tokens instanceof PermissionSet) {
+            return (PermissionSet) tokens;
+        }
+        if (tokens == null || tokens.isEmpty()) {
+            return EMPTY;
+        }
+        String[] sorted = new String[tokens.size()];
+        int size = 0;
+        for (String token : tokens) {
+            if (token != null) {
+                sorted[size++] = token;
+            }
+        }
+        Arrays.sort(sorted, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || !sorted[i].equals(sorted[distinct - 1])) {
+                sorted[distinct++] = sorted[i].intern();
+            }
+        }
+        if (distinct == 0) {
+            return EMPTY;
+        }
+        return canonical(new PermissionSet(distinct == sorted.length ? sorted : Arrays.copyOf(
+                sorted, distinct)));
+    }
+
+    /**
+     * Returns the canonical permission set holding the specified tokens.
+     *
+     * @param tokens the permission tokens
+     * @return the permission set
+     */
+    public static PermissionSet of(String... tokens) {
+        return of(Arrays.asList(tokens));
+    }
+
+    private static PermissionSet canonical(PermissionSet candidate) {
+        return POOL.intern(candidate);
+    }
+
+    /**
+     * Returns a digest of the tokens, computed once; equal sets have equal digests, across JVMs.
+     *
+     * @return the hex encoded MD5 digest of the tokens
+     */
+    public String getDigest() {
+        String result = digest;
+        if (result == null) {
+            result = computeDigest();
+            digest = result;
+        }
+        return result;
+    }
+
+    private String computeDigest() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 digest is not available", e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        for (String token : tokens) {
+            byte[] bytes = token.getBytes(utf8);
+            // length prefix, so that token boundaries are unambiguous
+            md.update((byte) (bytes.length >>> 24));
+            md.update((byte) (bytes.length >>> 16));
+            md.update((byte) (bytes.length >>> 8));
+            md.update((byte) bytes.length);
+            md.update(bytes);
+        }
+        byte[] bytes = md.digest();
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String get(int index) {
+        return tokens[index];
+    }
+
+    @Override
+    public int size() {
+        return tokens.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof String) && Arrays.binarySearch(tokens, (String) o) >= 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof PermissionSet) {
+            PermissionSet other = (PermissionSet) obj;
+            return hash == other.hash && Arrays.equals(tokens, other.tokens);
+        }
+        return super.equals(obj);
+    }
+
+    /**
+     * Replaces deserialized instances with canonical ones.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        if (tokens.length == 0) {
+            return EMPTY;
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = tokens[i].intern();
+        }
+        return canonical(this);
+    }
+
+}
@@ -6,12 +6,17 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Transaction;
 import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.util.logging.Logging;
@@ -19,6 +24,10 @@ import org.geotools.util.logging.Logging;
 /**
  * {@link DataAccess} implementation wrapping a {@link JDBCDataStore}.
  * 
+ * <p>
+ * The queries are configurable, see {@link PermissionQueries}.
+ * </p>
+ * 
  * @author Stefano Costa, GeoSolutions
  *
  */
@@ -26,22 +35,50 @@ public class DefaultDataAccess implements DataAccess {
 
     private static final Logger LOGGER = Logging.getLogger(DefaultDataAccess.class);
 
-    /** The stored procedure call to retrieve user modules from the database. */
-    private static final String GET_USER_ACCESS = "SELECT \"SERVICE_ID\" FROM service_access WHERE \"USER\" = ?";
+    /** Maximum number of users per query, well below the parameter limits of common databases. */
+    static final int MAX_BATCH_SIZE = 100;
+
+    /** Rows fetched per round trip when reading the permissions of all users, unless configured otherwise. */
+    static final int BULK_FETCH_SIZE = 1000;
 
     /** The wrapped {@link JDBCDataStore} instance. */
     JDBCDataStore delegate;
 
+    /** The SQL statements to run. */
+    final PermissionQueries queries;
+
+    /**
+     * The query retrieving the permissions of a batch of users, with {@value #MAX_BATCH_SIZE} parameters, {@code null} if a custom query is
+     * configured.
+     */
+    final String batchQuery;
+
     /**
      * Constructor.
      * 
      * @param dataStore the {@link JDBCDataStore} to wrap (must not be <code>null</code>)
      */
     DefaultDataAccess(JDBCDataStore dataStore) {
+        this(dataStore, PermissionQueries.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param dataStore the {@link JDBCDataStore} to wrap (must not be <code>null</code>)
+     * @param queries the SQL statements to run (must not be <code>null</code>)
+     */
+    DefaultDataAccess(JDBCDataStore dataStore, PermissionQueries queries) {
         if (dataStore == null) {
             throw new IllegalArgumentException("Provided dataStore cannot be null");
         }
+        if (queries == null) {
+            throw new IllegalArgumentException("Provided queries cannot be null");
+        }
         this.delegate = dataStore;
+        this.queries = queries;
+        this.batchQuery = (queries.usersQuery != null) ? buildBatchQuery(queries.usersQuery,
+                MAX_BATCH_SIZE) : null;
     }
 
     @Override
@@ -52,37 +89,251 @@ public class DefaultDataAccess implements DataAccess {
     }
 
     @Override
-    public List<String> getUserPermissions(String login) throws IOException {
+    public PermissionSet getUserPermissions(String login) throws IOException {
         ensureNotNull("login", login);
 
-        try (Connection conn = delegate.getConnection(Transaction.AUTO_COMMIT);
-                PreparedStatement ps = conn.prepareStatement(GET_USER_ACCESS)) {
-            ps.setString(1, login);
-
-            ps.execute();
-
-            List<String> result = new ArrayList<String>();
-            try (ResultSet rs = ps.getResultSet()) {
-                while(rs.next()) {
-                    result.add("'" + rs.getString(1) + "'");
-                }
-            }
+        List<String> result = new ArrayList<String>();
+        try (Connection conn = delegate.getConnection(Transaction.AUTO_COMMIT)) {
+            readUserPermissions(conn, login, result);
             if (!result.isEmpty()) {
+                PermissionSet permissions = PermissionSet.of(result);
                 if (LOGGER.isLoggable(Level.FINE)) {
                     LOGGER.log(Level.FINE, "Retrieved permissions for user {0}: {1}",
-                            new Object[] { login, result });
+                            new Object[] { login, permissions });
                 }
-                return result;
+                return permissions;
             } else {
                 if (LOGGER.isLoggable(Level.FINE)) {
                     LOGGER.log(Level.FINE, "No permissions found for user {0}",
                             new Object[] { login });
                 }
-                return Collections.emptyList();
+                return PermissionSet.EMPTY;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Map<String, PermissionSet> getUserPermissions(Collection<String> logins)
+            throws IOException {
+        ensureNotNull("logins", logins);
+
+        Map<String, List<String>> tokens = new LinkedHashMap<String, List<String>>();
+        for (String login : logins) {
+            ensureNotNull("login", login);
+            tokens.put(login, new ArrayList<String>());
+        }
+        List<String> users = new ArrayList<String>(tokens.keySet());
+
+        int queryCount = 0;
+        try (Connection conn = delegate.getConnection(Transaction.AUTO_COMMIT)) {
+            if (queries.usersQuery == null) {
+                // custom query, one user at a time
+                for (String user : users) {
+                    readUserPermissions(conn, user, tokens.get(user));
+                    queryCount++;
+                }
+            } else {
+                for (int from = 0; from < users.size(); from += MAX_BATCH_SIZE) {
+                    List<String> batch = users.subList(from,
+                            Math.min(from + MAX_BATCH_SIZE, users.size()));
+                    readUsersPermissions(conn, batch, tokens);
+                    queryCount++;
+                }
             }
         } catch (SQLException e) {
             throw new IOException(e);
         }
+
+        Map<String, PermissionSet> result = new LinkedHashMap<String, PermissionSet>();
+        for (Map.Entry<String, List<String>> entry : tokens.entrySet()) {
+            result.put(entry.getKey(), PermissionSet.of(entry.getValue()));
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Retrieved permissions for {0} users in {1} queries",
+                    new Object[] { users.size(), queryCount });
+        }
+        return result;
+    }
+
+    /**
+     * Receives the rows read by {@link DefaultDataAccess#readAllPermissions(PermissionHandler)}.
+     */
+    interface PermissionHandler {
+
+        /**
+         * @param user the user name
+         * @param token the permission token
+         */
+        void handle(String user, String token);
+    }
+
+    /**
+     * Loads the permissions of all users with a single query, e.g. to export them to a {@link PermissionSnapshot}.
+     * 
+     * @return the (canonical) permission sets by user name
+     * @throws IOException
+     * @throws IllegalStateException if a custom permissions query is configured
+     */
+    public Map<String, PermissionSet> getAllUserPermissions() throws IOException {
+        final Map<String, List<String>> tokens = new HashMap<String, List<String>>();
+        readAllPermissions(new PermissionHandler() {
+            @Override
+            public void handle(String user, String token) {
+                List<String> userTokens = tokens.get(user);
+                if (userTokens == null) {
+                    userTokens = new ArrayList<String>();
+                    tokens.put(user, userTokens);
+                }
+                userTokens.add(token);
+            }
+        });
+        Map<String, PermissionSet> result = new HashMap<String, PermissionSet>();
+        for (Map.Entry<String, List<String>> entry : tokens.entrySet()) {
+            result.put(entry.getKey(), PermissionSet.of(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the permissions of all users, streaming the rows to the handler.
+     * 
+     * <p>
+     * The query runs in a transaction, as some drivers (e.g. PostgreSQL) only honor the fetch size, instead of reading the whole result at once,
+     * when auto-commit is disabled.
+     * </p>
+     */
+    void readAllPermissions(PermissionHandler handler) throws IOException {
+        if (queries.allQuery == null) {
+            throw new IllegalStateException(
+                    "Permissions of all users cannot be read with a custom permissions query");
+        }
+        int rows = 0;
+        Transaction transaction = new DefaultTransaction();
+        try {
+            try (Connection conn = delegate.getConnection(transaction);
+                    PreparedStatement ps = conn.prepareStatement(queries.allQuery)) {
+                ps.setFetchSize(queries.fetchSize > 0 ? queries.fetchSize : BULK_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String user = rs.getString(1);
+                        String token = rs.getString(2);
+                        if (user != null && token != null) {
+                            handler.handle(user, token);
+                            rows++;
+                        }
+                    }
+                }
+                // read only
+                transaction.commit();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        } finally {
+            transaction.close();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Read {0} permissions", rows);
+        }
+    }
+
+    /**
+     * Runs the configured version query; a user having no stamp (e.g. no permissions at all) gets the empty stamp.
+     */
+    @Override
+    public String getPermissionsVersion(String login) throws IOException {
+        ensureNotNull("login", login);
+        if (queries.versionQuery == null) {
+            return null;
+        }
+
+        try (Connection conn = delegate.getConnection(Transaction.AUTO_COMMIT);
+                PreparedStatement ps = conn.prepareStatement(queries.versionQuery)) {
+            ps.setString(1, login);
+            try (ResultSet rs = ps.executeQuery()) {
+                String version = rs.next() ? rs.getString(1) : null;
+                return (version != null) ? version : "";
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the permissions of a user with the configured query, which may be a stored procedure call.
+     * 
+     * <p>
+     * Statements are prepared on each call: as long as the connection pool keeps prepared statements open (see the
+     * {@code Max open prepared statements} data store parameter), the pooled statement is reused and the query is not planned again.
+     * </p>
+     */
+    private void readUserPermissions(Connection conn, String login, List<String> result)
+            throws SQLException {
+        try (PreparedStatement ps = queries.callable ? conn.prepareCall(queries.userQuery)
+                : conn.prepareStatement(queries.userQuery)) {
+            ps.setString(1, login);
+            if (queries.fetchSize > 0) {
+                ps.setFetchSize(queries.fetchSize);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    result.add(rs.getString(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the permissions of a batch of users.
+     * 
+     * <p>
+     * The same query is run for batches of any size, padded by repeating the last user name, so that a single statement is prepared (and
+     * pooled, see {@link #readUserPermissions(Connection, String, List)}) for all batches.
+     * </p>
+     */
+    private void readUsersPermissions(Connection conn, List<String> batch,
+            Map<String, List<String>> tokens) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(batchQuery)) {
+            for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+                ps.setString(i + 1, batch.get(Math.min(i, batch.size() - 1)));
+            }
+            if (queries.fetchSize > 0) {
+                ps.setFetchSize(queries.fetchSize);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    addToken(tokens, batch, rs.getString(1), rs.getString(2));
+                }
+            }
+        }
+    }
+
+    private static String buildBatchQuery(String usersQuery, int size) {
+        StringBuilder sql = new StringBuilder(usersQuery.length() + size * 2);
+        sql.append(usersQuery);
+        for (int i = 0; i < size; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /**
+     * Adds a token to the user it was returned for; as the database may compare user names ignoring case, the user is looked up ignoring case
+     * too, if there is no exact match.
+     */
+    private static void addToken(Map<String, List<String>> tokens, List<String> batch,
+            String user, String token) {
+        List<String> userTokens = tokens.get(user);
+        if (userTokens != null) {
+            userTokens.add(token);
+            return;
+        }
+        for (String login : batch) {
+            if (login.equalsIgnoreCase(user)) {
+                tokens.get(login).add(token);
+            }
+        }
     }
 
     private void ensureNotNull(String name, Object value) {
@@ -25,6 +25,19 @@ import org.geotools.util.logging.Logging;
  * The underlying {@link JDBCDataStore} is configured via a regular GeoTools DataStore configuration file.
  * </p>
  * 
+ * <p>
+ * Alternatively, setting {@value #BACKEND_KEY} to {@value #SNAPSHOT_BACKEND} in the configuration file makes the provider create a
+ * {@link SnapshotDataAccess}, reading the permissions from the {@link PermissionSnapshot} file set by {@value #SNAPSHOT_FILE_KEY} (relative
+ * to the configuration directory, {@value #DEFAULT_SNAPSHOT_FILE_NAME} by default), with no database involved.
+ * </p>
+ * 
+ * <p>
+ * Setting {@value #BACKEND_KEY} to {@value #MEMORY_BACKEND} makes the provider create an {@link InMemoryDataAccess}, loading the permissions of
+ * all users from the database and reloading them every {@value #RELOAD_INTERVAL_KEY} seconds and, if {@value #CHANGES_TABLE_KEY} is set, as
+ * soon as a change is logged in that table (see {@link PollingPermissionChangeSource}), which is polled every {@value #POLL_INTERVAL_KEY}
+ * seconds. Cached permissions should then be evicted through an {@link InMemoryPermissionChangeSource}, not by polling the same table.
+ * </p>
+ * 
  * @author Stefano Costa, GeoSolutions
  *
  */
@@ -38,6 +51,28 @@ public class DefaultDataAccessProvider implements DataAccessProvider {
     /** Default configuration file, loaded from the classpath. */
     static final String DEFAULT_CONFIG_FILE = "/org/geoserver/extension/pluggableaccessmanager/data/data-access.properties.default";
 
+    /** Configuration key of the backend, either {@value #JDBC_BACKEND} (the default), {@value #SNAPSHOT_BACKEND} or {@value #MEMORY_BACKEND}. */
+    static final String BACKEND_KEY = "backend";
+
+    static final String JDBC_BACKEND = "jdbc";
+
+    static final String SNAPSHOT_BACKEND = "snapshot";
+
+    static final String MEMORY_BACKEND = "memory";
+
+    /** Configuration keys of the {@value #MEMORY_BACKEND} backend. */
+    static final String RELOAD_INTERVAL_KEY = "reload_interval";
+
+    static final String CHANGES_TABLE_KEY = "changes_table";
+
+    static final String POLL_INTERVAL_KEY = "poll_interval";
+
+    /** Configuration key of the snapshot file, used by the {@value #SNAPSHOT_BACKEND} backend. */
+    static final String SNAPSHOT_FILE_KEY = "snapshot_file";
+
+    /** Default snapshot file name, relative to configuration directory. */
+    static final String DEFAULT_SNAPSHOT_FILE_NAME = "pluggableaccessmanager/permissions.snapshot";
+
     /** The directory where the configuration file is located. */
     File configDir;
 
@@ -75,7 +110,8 @@ public class DefaultDataAccessProvider implements DataAccessProvider {
      * Instantiates the data access.
      * 
      * <p>
-     * The method calls {@link DataStoreFinder#getDataStore(java.util.Map)}, passing the properties read from the configuration file.
+     * The method calls {@link DataStoreFinder#getDataStore(java.util.Map)}, passing the properties read from the configuration file, except for
+     * the query settings, which are passed to the data access (see {@link PermissionQueries}).
      * </p>
      * 
      * <p>
@@ -83,7 +119,7 @@ public class DefaultDataAccessProvider implements DataAccessProvider {
      * </p>
      * 
      * @throws IOException
-     * @throws IllegalArgumentException if the configured DataStore is not a JDBCDataStore
+     * @throws IllegalArgumentException if the configured DataStore is not a JDBCDataStore, or the backend is unknown
      */
     void initDataAccess() throws IOException {
         if (configDir == null || !configDir.exists()) {
@@ -103,12 +139,75 @@ public class DefaultDataAccessProvider implements DataAccessProvider {
         try (InputStream configStream = new FileInputStream(configFile)) {
             config.load(configStream);
         }
+        String backend = (String) config.remove(BACKEND_KEY);
+        String snapshotFile = (String) config.remove(SNAPSHOT_FILE_KEY);
+        if (SNAPSHOT_BACKEND.equalsIgnoreCase(trim(backend))) {
+            this.dataAccess = new SnapshotDataAccess(getSnapshotFile(trim(snapshotFile)));
+            return;
+        }
+        boolean inMemory = MEMORY_BACKEND.equalsIgnoreCase(trim(backend));
+        if (backend != null && !inMemory && !JDBC_BACKEND.equalsIgnoreCase(trim(backend))) {
+            throw new IllegalArgumentException("Unknown data access backend: " + backend);
+        }
+
+        // not data store parameters
+        long reloadInterval = getInterval(config, RELOAD_INTERVAL_KEY,
+                InMemoryDataAccess.DEFAULT_RELOAD_INTERVAL);
+        long pollInterval = getInterval(config, POLL_INTERVAL_KEY,
+                InMemoryDataAccess.DEFAULT_POLL_INTERVAL);
+        String changesTable = trim((String) config.remove(CHANGES_TABLE_KEY));
+        PermissionQueries queries = PermissionQueries.fromProperties(config);
         DataStore dataStore = DataStoreFinder.getDataStore(config);
-        if (dataStore instanceof JDBCDataStore) {
-            this.dataAccess = new DefaultDataAccess((JDBCDataStore) dataStore);
-        } else {
+        if (!(dataStore instanceof JDBCDataStore)) {
             throw new IllegalArgumentException("Configured DataStore is not a JDBCDataStore");
         }
+        DefaultDataAccess jdbcDataAccess = new DefaultDataAccess((JDBCDataStore) dataStore, queries);
+        if (!inMemory) {
+            this.dataAccess = jdbcDataAccess;
+            return;
+        }
+
+        PollingPermissionChangeSource changes = null;
+        if (changesTable != null && !changesTable.isEmpty()) {
+            changes = new PollingPermissionChangeSource((JDBCDataStore) dataStore);
+            changes.setTable(changesTable);
+        }
+        InMemoryDataAccess memoryDataAccess = null;
+        try {
+            memoryDataAccess = new InMemoryDataAccess(jdbcDataAccess, changes, reloadInterval,
+                    pollInterval);
+        } finally {
+            if (memoryDataAccess == null) {
+                // could not load the permissions, don't leak the connection pool
+                jdbcDataAccess.dispose();
+            }
+        }
+        memoryDataAccess.start();
+        this.dataAccess = memoryDataAccess;
+    }
+
+    private static long getInterval(Properties config, String key, long defaultValue) {
+        String value = trim((String) config.remove(key));
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+
+    private File getSnapshotFile(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            return new File(configDir, DEFAULT_SNAPSHOT_FILE_NAME);
+        }
+        File file = new File(fileName);
+        return file.isAbsolute() ? file : new File(configDir, fileName);
+    }
+
+    private static String trim(String value) {
+        return (value != null) ? value.trim() : null;
     }
 
     private void createDefaultConfig(File configFile) throws IOException {
@@ -134,4 +233,22 @@ public class DefaultDataAccessProvider implements DataAccessProvider {
         return dataAccess;
     }
 
+    /**
+     * Returns the {@link JDBCDataStore} wrapped by the data access, e.g. to read other tables from the same database.
+     *
+     * @return the data store
+     * @throws IOException
+     * @throws IllegalStateException if the configured backend has no database
+     */
+    JDBCDataStore getDataStore() throws IOException {
+        DataAccess current = getDataAccess();
+        if (current instanceof InMemoryDataAccess) {
+            current = ((InMemoryDataAccess) current).source;
+        }
+        if (!(current instanceof DefaultDataAccess)) {
+            throw new IllegalStateException("The configured data access backend has no database");
+        }
+        return ((DefaultDataAccess) current).delegate;
+    }
+
 }
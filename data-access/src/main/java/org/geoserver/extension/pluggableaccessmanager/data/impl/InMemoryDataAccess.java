@@ -0,0 +1,418 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.util.logging.Logging;
+
+/**
+ * {@link DataAccess} implementation keeping the permissions of all users in memory, bulk loaded from a {@link DefaultDataAccess} with a single
+ * streaming query.
+ *
+ * <p>
+ * The index is loaded when the data access is created, then reloaded in the background every {@link #getReloadInterval() reload interval}.
+ * If a {@link PermissionChangeSource} is given, the permissions of the users it reports are reloaded as soon as it does, unless more than
+ * {@value #MAX_DELTA_USERS} users changed or changes may have been missed, in which case the whole index is. Each reload builds a new index,
+ * which is swapped in once complete: lookups never hit the database and are served by the previous index while a reload is running, or if it
+ * fails.
+ * </p>
+ *
+ * <p>
+ * Permission sets are canonical (see {@link PermissionSet}), so users granted the same permissions share a single instance. User names are
+ * compared ignoring case, as {@link DefaultDataAccess} does. The digest of the permissions is used as version stamp, so that cached
+ * permissions can be revalidated at no cost.
+ * </p>
+ *
+ * <p>
+ * The users whose permissions differ in the new index are recorded once it is swapped in: caches of the permissions should be evicted from those
+ * (see {@link InMemoryPermissionChangeSource}), rather than from the changes source, which is read before the new index is served.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class InMemoryDataAccess implements DataAccess {
+
+    private static final Logger LOGGER = Logging.getLogger(InMemoryDataAccess.class);
+
+    /** Default reload interval, in seconds. */
+    static final long DEFAULT_RELOAD_INTERVAL = 300;
+
+    /** Default polling interval of the change source, in seconds. */
+    static final long DEFAULT_POLL_INTERVAL = 5;
+
+    /** The data access the permissions are loaded from. */
+    final DefaultDataAccess source;
+
+    /** The source of permission changes, {@code null} if none. */
+    private final PermissionChangeSource changes;
+
+    private final long reloadInterval;
+
+    private final long pollInterval;
+
+    /** Maximum number of changed users whose permissions are reloaded one by one; beyond that, the whole index is reloaded. */
+    static final int MAX_DELTA_USERS = 1000;
+
+    /** The current index. */
+    private volatile Index index;
+
+    /** Held while loading permissions, so that a full reload and a per-user reload do not overwrite each other. */
+    private final Object loadLock = new Object();
+
+    /** The time the current index was loaded at. */
+    private volatile long loadTime;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    private final AtomicLong deltaCount = new AtomicLong();
+
+    /** Maximum number of changed users recorded until they are polled; beyond that, all users are reported as changed. */
+    static final int MAX_APPLIED_CHANGES = 10000;
+
+    /** Users whose permissions changed in the index since the last poll, {@code null} if too many did. */
+    private Set<String> appliedChanges = new HashSet<String>();
+
+    /**
+     * Constructor; the index is loaded before returning.
+     *
+     * @param source the data access to load the permissions from
+     * @param changes the source of permission changes, may be {@code null}
+     * @param reloadInterval the reload interval, in seconds ({@code 0} to reload on changes only)
+     * @param pollInterval the polling interval of the change source, in seconds
+     * @throws IOException if the index cannot be loaded
+     */
+    InMemoryDataAccess(DefaultDataAccess source, PermissionChangeSource changes,
+            long reloadInterval, long pollInterval) throws IOException {
+        if (source == null) {
+            throw new IllegalArgumentException("Source data access cannot be null");
+        }
+        if (reloadInterval < 0) {
+            throw new IllegalArgumentException("Invalid reload interval: " + reloadInterval);
+        }
+        if (pollInterval <= 0) {
+            throw new IllegalArgumentException("Invalid polling interval: " + pollInterval);
+        }
+        this.source = source;
+        this.changes = changes;
+        this.reloadInterval = reloadInterval;
+        this.pollInterval = pollInterval;
+        if (changes != null) {
+            // establish the starting point, so that no change following the load is missed
+            changes.poll();
+        }
+        this.index = load();
+        this.loadTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the reload interval, in seconds ({@code 0} if the index is reloaded on changes only)
+     */
+    public long getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * @return the number of users in the current index
+     */
+    public int getUserCount() {
+        return index.permissions.size();
+    }
+
+    /**
+     * @return the number of times the index has been reloaded
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * @return the number of times the permissions of the changed users have been reloaded, rather than the whole index
+     */
+    public long getDeltaCount() {
+        return deltaCount.get();
+    }
+
+    /**
+     * Starts reloading the index in the background.
+     */
+    synchronized void start() {
+        long delay = (changes != null) ? pollInterval : reloadInterval;
+        if (scheduler != null || delay == 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "permissions-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, delay, delay, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reloads the permissions of the users reported by the change source, or the whole index if too many changed, changes may have been missed
+     * or the reload interval has elapsed.
+     */
+    void check() {
+        boolean changed = false;
+        Set<String> users = null;
+        if (changes != null) {
+            try {
+                users = changes.poll();
+                // null means changes may have been missed
+                changed = (users == null || !users.isEmpty());
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not poll permission changes", e);
+            }
+        }
+        try {
+            if ((changed && (users == null || users.size() > MAX_DELTA_USERS))
+                    || (reloadInterval > 0
+                            && System.currentTimeMillis() - loadTime >= reloadInterval * 1000)) {
+                reload();
+            } else if (changed) {
+                reload(users);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not reload permissions, keeping the previous ones",
+                    e);
+        }
+    }
+
+    /**
+     * Loads the index again and swaps it in.
+     *
+     * @throws IOException
+     */
+    public void reload() throws IOException {
+        synchronized (loadLock) {
+            long start = System.currentTimeMillis();
+            Index loaded = load();
+            synchronized (this) {
+                recordChanges(index, loaded);
+                index = loaded;
+            }
+            loadTime = start;
+            reloadCount.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Reloaded permissions of {0} users in {1} ms",
+                        new Object[] { loaded.permissions.size(),
+                                System.currentTimeMillis() - start });
+            }
+        }
+    }
+
+    /**
+     * Reloads the permissions of the specified users and swaps in a copy of the index holding them.
+     *
+     * @param users the names of the users, as stored in the database
+     * @throws IOException
+     */
+    void reload(Collection<String> users) throws IOException {
+        synchronized (loadLock) {
+            Map<String, PermissionSet> loaded = source.getUserPermissions(users);
+            synchronized (this) {
+                Index current = index;
+                Map<String, PermissionSet> permissions = new HashMap<String, PermissionSet>(
+                        current.permissions);
+                Map<String, String> names = new HashMap<String, String>(current.names);
+                for (Map.Entry<String, PermissionSet> entry : loaded.entrySet()) {
+                    String name = entry.getKey();
+                    String key = normalize(name);
+                    PermissionSet previous = entry.getValue().isEmpty() ? permissions.remove(key)
+                            : permissions.put(key, entry.getValue());
+                    if (name.equals(key) || entry.getValue().isEmpty()) {
+                        names.remove(key);
+                    } else {
+                        names.put(key, name);
+                    }
+                    if (!entry.getValue().equals(
+                            (previous != null) ? previous : PermissionSet.EMPTY)) {
+                        recordChange(name);
+                    }
+                }
+                index = new Index(permissions, names);
+            }
+            deltaCount.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Reloaded permissions of changed users {0}", users);
+            }
+        }
+    }
+
+    /**
+     * Records the users whose permissions differ between the specified indexes.
+     */
+    private void recordChanges(Index previous, Index current) {
+        for (Map.Entry<String, PermissionSet> entry : current.permissions.entrySet()) {
+            if (!entry.getValue().equals(previous.permissions.get(entry.getKey()))) {
+                recordChange(current.getName(entry.getKey()));
+            }
+        }
+        for (String key : previous.permissions.keySet()) {
+            if (!current.permissions.containsKey(key)) {
+                recordChange(previous.getName(key));
+            }
+        }
+    }
+
+    private void recordChange(String user) {
+        if (appliedChanges == null) {
+            return;
+        }
+        appliedChanges.add(user);
+        if (appliedChanges.size() > MAX_APPLIED_CHANGES) {
+            appliedChanges = null;
+        }
+    }
+
+    /**
+     * Returns the users whose permissions changed in the index since the previous call, i.e. whose new permissions are being served.
+     *
+     * @return the names of the users, or {@code null} if the permissions of too many users changed to keep track of them
+     */
+    synchronized Set<String> pollAppliedChanges() {
+        Set<String> changes = appliedChanges;
+        appliedChanges = new HashSet<String>();
+        return changes;
+    }
+
+    private Index load() throws IOException {
+        final Map<String, List<String>> tokens = new HashMap<String, List<String>>();
+        final Map<String, String> names = new HashMap<String, String>();
+        source.readAllPermissions(new DefaultDataAccess.PermissionHandler() {
+            @Override
+            public void handle(String user, String token) {
+                String key = normalize(user);
+                List<String> userTokens = tokens.get(key);
+                if (userTokens == null) {
+                    userTokens = new ArrayList<String>(4);
+                    tokens.put(key, userTokens);
+                    if (!key.equals(user)) {
+                        names.put(key, user);
+                    }
+                }
+                // tokens repeat across users, don't keep a copy per row
+                userTokens.add(token.intern());
+            }
+        });
+        Map<String, PermissionSet> result = new HashMap<String, PermissionSet>(
+                (int) (tokens.size() / 0.75f) + 1);
+        for (Map.Entry<String, List<String>> entry : tokens.entrySet()) {
+            result.put(entry.getKey(), PermissionSet.of(entry.getValue()));
+        }
+        return new Index(result, names);
+    }
+
+    @Override
+    public PermissionSet getUserPermissions(String login) {
+        ensureNotNull("login", login);
+        return lookup(index, login);
+    }
+
+    @Override
+    public Map<String, PermissionSet> getUserPermissions(Collection<String> logins) {
+        ensureNotNull("logins", logins);
+        Index current = index;
+        Map<String, PermissionSet> result = new LinkedHashMap<String, PermissionSet>();
+        for (String login : logins) {
+            ensureNotNull("login", login);
+            result.put(login, lookup(current, login));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the digest of the permissions of the user, as held by the current index.
+     */
+    @Override
+    public String getPermissionsVersion(String login) {
+        return getUserPermissions(login).getDigest();
+    }
+
+    private static PermissionSet lookup(Index index, String login) {
+        PermissionSet permissions = index.permissions.get(normalize(login));
+        return (permissions != null) ? permissions : PermissionSet.EMPTY;
+    }
+
+    /**
+     * Returns the key of the specified user name in the index, so that user names differing in case only match.
+     */
+    static String normalize(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        if (changes != null) {
+            changes.dispose();
+        }
+        source.dispose();
+    }
+
+    private void ensureNotNull(String name, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException(name + " cannot be null");
+        }
+    }
+
+    /**
+     * The permissions of all users, by normalized user name.
+     */
+    private static final class Index {
+
+        final Map<String, PermissionSet> permissions;
+
+        /** The user names as stored in the database, for those differing from their normalized form. */
+        final Map<String, String> names;
+
+        Index(Map<String, PermissionSet> permissions, Map<String, String> names) {
+            this.permissions = Collections.unmodifiableMap(permissions);
+            this.names = names;
+        }
+
+        /**
+         * @return the user name as stored in the database
+         */
+        String getName(String key) {
+            String name = names.get(key);
+            return (name != null) ? name : key;
+        }
+    }
+
+}
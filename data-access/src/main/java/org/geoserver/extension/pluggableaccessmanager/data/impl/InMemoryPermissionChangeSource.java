@@ -0,0 +1,64 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+
+/**
+ * {@link PermissionChangeSource} reporting the users whose permissions changed in the index of an {@link InMemoryDataAccess}, once the new
+ * index is served.
+ *
+ * <p>
+ * Meant to evict cached permissions when the in-memory backend is used: evicting them as soon as a change is logged (e.g. with a
+ * {@link PollingPermissionChangeSource} on the same table) may happen before the index is reloaded, in which case the previous permissions
+ * would be cached again.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class InMemoryPermissionChangeSource implements PermissionChangeSource {
+
+    private final DefaultDataAccessProvider provider;
+
+    /** Whether the starting point has been established. */
+    private boolean started;
+
+    /**
+     * Constructor.
+     *
+     * @param provider the provider of the in-memory data access
+     */
+    public InMemoryPermissionChangeSource(DefaultDataAccessProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("Provider cannot be null");
+        }
+        this.provider = provider;
+    }
+
+    /**
+     * @throws IllegalStateException if the configured backend does not keep the permissions in memory
+     */
+    @Override
+    public Set<String> poll() throws IOException {
+        DataAccess dataAccess = provider.getDataAccess();
+        if (!(dataAccess instanceof InMemoryDataAccess)) {
+            throw new IllegalStateException(
+                    "The configured data access backend does not keep the permissions in memory");
+        }
+        Set<String> users = ((InMemoryDataAccess) dataAccess).pollAppliedChanges();
+        if (!started) {
+            started = true;
+            return null;
+        }
+        return users;
+    }
+
+    @Override
+    public void dispose() {
+        // the data access is disposed by its provider
+    }
+
+}
@@ -0,0 +1,174 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+import org.geotools.data.Transaction;
+import org.geotools.data.jdbc.datasource.DataSourceFinder;
+import org.geotools.data.jdbc.datasource.UnWrapper;
+import org.geotools.util.logging.Logging;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * {@link PermissionChangeSource} listening for PostgreSQL notifications, sent (e.g. by a trigger on {@code service_access}) with
+ * {@code NOTIFY <channel>, '<user name>'} for each user whose grants change; a notification with an empty payload means the grants of any user
+ * may have changed.
+ *
+ * <p>
+ * A connection is taken from the pool of the data store and kept open to receive the notifications, for as long as the source is not
+ * {@link #dispose() disposed}: the pool has one connection less for permission lookups, so its maximum size should account for it. If the
+ * connection is lost, a new one is taken and the next poll reports that any change may have been missed.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class NotifyingPermissionChangeSource implements PermissionChangeSource {
+
+    private static final Logger LOGGER = Logging.getLogger(NotifyingPermissionChangeSource.class);
+
+    /** Default notification channel. */
+    static final String DEFAULT_CHANNEL = "service_access_changes";
+
+    private static final Pattern CHANNEL_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /** The data store the listening connection is taken from. */
+    final DefaultDataAccessProvider provider;
+
+    /** The notification channel. */
+    String channel = DEFAULT_CHANNEL;
+
+    /** The listening connection, {@code null} if not connected. */
+    Connection connection;
+
+    /**
+     * Constructor.
+     *
+     * @param provider the provider of the data access whose database sends the notifications
+     */
+    public NotifyingPermissionChangeSource(DefaultDataAccessProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("Provider cannot be null");
+        }
+        this.provider = provider;
+    }
+
+    /**
+     * @return the notification channel
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @param channel the notification channel, a plain SQL identifier
+     */
+    public void setChannel(String channel) {
+        if (channel == null || !CHANNEL_PATTERN.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid channel name: " + channel);
+        }
+        this.channel = channel;
+    }
+
+    @Override
+    public Set<String> poll() throws IOException {
+        if (connection == null) {
+            listen();
+            // changes may have been missed while not listening
+            return null;
+        }
+        try {
+            // notifications are only received along with the results of a query
+            try (Statement st = connection.createStatement()) {
+                st.execute("SELECT 1");
+            }
+            PGNotification[] notifications = unwrap(connection).getNotifications();
+            Set<String> users = new HashSet<String>();
+            if (notifications != null) {
+                for (PGNotification notification : notifications) {
+                    String user = notification.getParameter();
+                    if (user == null || user.isEmpty()) {
+                        return null;
+                    }
+                    users.add(user);
+                }
+            }
+            if (LOGGER.isLoggable(Level.FINE) && !users.isEmpty()) {
+                LOGGER.log(Level.FINE, "Permissions changed for users {0}", users);
+            }
+            return users;
+        } catch (SQLException e) {
+            // reconnect at the next poll
+            dispose();
+            throw new IOException(e);
+        }
+    }
+
+    private void listen() throws IOException {
+        Connection conn = provider.getDataStore().getConnection(Transaction.AUTO_COMMIT);
+        try {
+            try (Statement st = conn.createStatement()) {
+                st.execute("LISTEN " + channel);
+            }
+            unwrap(conn);
+        } catch (SQLException e) {
+            close(conn);
+            throw new IOException(e);
+        } catch (RuntimeException e) {
+            close(conn);
+            throw e;
+        }
+        connection = conn;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Listening for permission changes on channel " + channel);
+        }
+    }
+
+    /**
+     * Unwraps the pooled connection to get the native PostgreSQL one.
+     */
+    private static PGConnection unwrap(Connection conn) {
+        if (conn instanceof PGConnection) {
+            return (PGConnection) conn;
+        }
+        UnWrapper unwrapper = DataSourceFinder.getUnWrapper(conn);
+        Connection unwrapped = (unwrapper != null) ? unwrapper.unwrap(conn) : null;
+        if (!(unwrapped instanceof PGConnection)) {
+            throw new IllegalArgumentException(
+                    "Notifications are only supported by PostgreSQL connections");
+        }
+        return (PGConnection) unwrapped;
+    }
+
+    private static void close(Connection conn) {
+        // the connection goes back to the pool, make sure it does not keep queueing notifications
+        try (Statement st = conn.createStatement()) {
+            st.execute("UNLISTEN *");
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Failed to stop listening", e);
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Failed to close connection", e);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (connection != null) {
+            close(connection);
+            connection = null;
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * The SQL statements run by {@link DefaultDataAccess}, configured in {@code data-access.properties} along with the data store parameters:
+ * <ul>
+ * <li>{@value #TABLE_KEY}, {@value #USER_COLUMN_KEY}, {@value #PERMISSION_COLUMN_KEY}: the table (or view) holding the grants and its columns,
+ * {@code service_access}, {@code USER} and {@code SERVICE_ID} by default;</li>
+ * <li>{@value #USER_QUERY_KEY}: a custom query, taking the user name as the only parameter and returning the permissions in the first column;
+ * may also be a stored procedure call, e.g. <code>{call get_user_access(?)}</code>. Lookups of several users then run the custom query once
+ * per user;</li>
+ * <li>{@value #FETCH_SIZE_KEY}: the number of rows fetched per round trip ({@code 0}, the default, to use the driver default);</li>
+ * <li>{@value #VERSION_QUERY_KEY}: the query returning the version stamp of the permissions of a user, see
+ * {@link DefaultDataAccess#getPermissionsVersion(String)} (none by default).</li>
+ * </ul>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+final class PermissionQueries {
+
+    static final String TABLE_KEY = "permissions_table";
+
+    static final String USER_COLUMN_KEY = "user_column";
+
+    static final String PERMISSION_COLUMN_KEY = "permission_column";
+
+    static final String USER_QUERY_KEY = "permissions_query";
+
+    static final String FETCH_SIZE_KEY = "fetch_size";
+
+    static final String VERSION_QUERY_KEY = "version_query";
+
+    static final String DEFAULT_TABLE = "service_access";
+
+    static final String DEFAULT_USER_COLUMN = "USER";
+
+    static final String DEFAULT_PERMISSION_COLUMN = "SERVICE_ID";
+
+    /** Plain, optionally schema qualified, identifiers. */
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)*");
+
+    /** The default queries. */
+    static final PermissionQueries DEFAULT = new PermissionQueries(DEFAULT_TABLE,
+            DEFAULT_USER_COLUMN, DEFAULT_PERMISSION_COLUMN, null, 0, null);
+
+    /** The query retrieving the permissions of a user. */
+    final String userQuery;
+
+    /** Whether {@link #userQuery} is a stored procedure call. */
+    final boolean callable;
+
+    /** The query retrieving the permissions of several users, to be completed by a list of parameters and a closing parenthesis; {@code null} if
+     * a custom query is configured. */
+    final String usersQuery;
+
+    /** The query retrieving the permissions of all users; {@code null} if a custom query is configured. */
+    final String allQuery;
+
+    /** The number of rows fetched per round trip ({@code 0} to use the driver default). */
+    final int fetchSize;
+
+    /** The query returning the version stamp of the permissions of a user, {@code null} if versioning is not supported. */
+    final String versionQuery;
+
+    PermissionQueries(String table, String userColumn, String permissionColumn,
+            String userQuery, int fetchSize, String versionQuery) {
+        checkIdentifier(TABLE_KEY, table);
+        checkIdentifier(USER_COLUMN_KEY, userColumn);
+        checkIdentifier(PERMISSION_COLUMN_KEY, permissionColumn);
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Invalid fetch size: " + fetchSize);
+        }
+        if (isEmpty(userQuery)) {
+            this.userQuery = "SELECT \"" + permissionColumn + "\" FROM " + table + " WHERE \""
+                    + userColumn + "\" = ?";
+            this.allQuery = "SELECT \"" + userColumn + "\", \"" + permissionColumn + "\" FROM "
+                    + table;
+            this.usersQuery = allQuery + " WHERE \"" + userColumn + "\" IN (";
+        } else {
+            this.userQuery = userQuery.trim();
+            this.usersQuery = null;
+            this.allQuery = null;
+        }
+        this.callable = this.userQuery.startsWith("{");
+        this.fetchSize = fetchSize;
+        this.versionQuery = isEmpty(versionQuery) ? null : versionQuery.trim();
+    }
+
+    /**
+     * Reads the queries from the configuration; the properties read are removed, so that only the data store parameters are left.
+     *
+     * @param config the configuration
+     * @return the queries
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    static PermissionQueries fromProperties(Properties config) {
+        String table = (String) config.remove(TABLE_KEY);
+        String userColumn = (String) config.remove(USER_COLUMN_KEY);
+        String permissionColumn = (String) config.remove(PERMISSION_COLUMN_KEY);
+        String userQuery = (String) config.remove(USER_QUERY_KEY);
+        String fetchSize = (String) config.remove(FETCH_SIZE_KEY);
+        String versionQuery = (String) config.remove(VERSION_QUERY_KEY);
+        try {
+            return new PermissionQueries(isEmpty(table) ? DEFAULT_TABLE : table.trim(),
+                    isEmpty(userColumn) ? DEFAULT_USER_COLUMN : userColumn.trim(),
+                    isEmpty(permissionColumn) ? DEFAULT_PERMISSION_COLUMN
+                            : permissionColumn.trim(), userQuery,
+                    isEmpty(fetchSize) ? 0 : Integer.parseInt(fetchSize.trim()), versionQuery);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid fetch size: " + fetchSize, e);
+        }
+    }
+
+    /**
+     * Checks that the specified value is a plain, optionally schema qualified, identifier, which can be safely concatenated into SQL.
+     *
+     * @throws IllegalArgumentException if the value is not a valid identifier
+     */
+    static void checkIdentifier(String key, String identifier) {
+        if (identifier == null || !IDENTIFIER.matcher(identifier).matches()) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + identifier);
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+}
@@ -0,0 +1,317 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+
+/**
+ * Read-only, memory-mapped snapshot of the permissions of all users, e.g. exported from the database for nodes which cannot reach it (see
+ * {@link SnapshotDataAccess} and {@link PermissionSnapshotExport}).
+ *
+ * <p>
+ * The file is made of:
+ * </p>
+ * <ul>
+ * <li>a header: magic number, format version, number of distinct tokens, number of users;</li>
+ * <li>the token dictionary: each distinct token, as a length-prefixed UTF-8 string;</li>
+ * <li>the user records: the user name, as a length-prefixed UTF-8 string, followed by the number of tokens and the dictionary index of each
+ * token;</li>
+ * <li>the user index: the offset of each user record, sorted by user name (comparing UTF-8 bytes);</li>
+ * <li>a trailer: the offset of the user index.</li>
+ * </ul>
+ *
+ * <p>
+ * Opening a snapshot reads the token dictionary and checks the bounds of the user records in a single pass, so that a corrupt file is rejected
+ * with an {@link IOException}; users are then looked up by binary search over the mapped index. Instances are immutable and thread-safe.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public final class PermissionSnapshot {
+
+    static final int MAGIC = 0x50414D53;
+
+    /** Version 2 stores raw permission values, version 1 snapshots held quoted values and must be exported again. */
+    static final int FORMAT_VERSION = 2;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+
+    private final String[] tokens;
+
+    private final int userCount;
+
+    private final int indexOffset;
+
+    private PermissionSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE + 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a permission snapshot");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported permission snapshot version: " + buffer.getInt(4));
+        }
+        int tokenCount = buffer.getInt(8);
+        this.userCount = buffer.getInt(12);
+        this.indexOffset = buffer.getInt(buffer.limit() - 4);
+        if (tokenCount < 0 || userCount < 0 || indexOffset < HEADER_SIZE
+                || indexOffset + 4L * userCount + 4 != buffer.limit()) {
+            throw new IOException("Corrupted permission snapshot");
+        }
+        if (tokenCount > (indexOffset - HEADER_SIZE) / 2) {
+            throw new IOException("Corrupted permission snapshot");
+        }
+        this.tokens = new String[tokenCount];
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < tokenCount; i++) {
+            int end = stringEnd(offset);
+            tokens[i] = readString(offset);
+            offset = end;
+        }
+        checkUserRecords(offset);
+    }
+
+    /**
+     * Returns the end of the length-prefixed string at the specified offset, checking it lies before the user index.
+     */
+    private int stringEnd(int offset) throws IOException {
+        if (offset + 2 > indexOffset) {
+            throw new IOException("Corrupted permission snapshot");
+        }
+        int end = offset + 2 + (buffer.getShort(offset) & 0xFFFF);
+        if (end > indexOffset) {
+            throw new IOException("Corrupted permission snapshot");
+        }
+        return end;
+    }
+
+    /**
+     * Checks that the user records follow one another from the specified offset up to the user index, in index order, and only reference tokens
+     * of the dictionary, so that lookups never read out of bounds.
+     */
+    private void checkUserRecords(int offset) throws IOException {
+        for (int i = 0; i < userCount; i++) {
+            if (buffer.getInt(indexOffset + 4 * i) != offset) {
+                throw new IOException("Corrupted permission snapshot");
+            }
+            offset = stringEnd(offset);
+            if (offset + 4 > indexOffset) {
+                throw new IOException("Corrupted permission snapshot");
+            }
+            int count = buffer.getInt(offset);
+            offset += 4;
+            if (count < 0 || count > (indexOffset - offset) / 4) {
+                throw new IOException("Corrupted permission snapshot");
+            }
+            for (int j = 0; j < count; j++) {
+                int id = buffer.getInt(offset);
+                if (id < 0 || id >= tokens.length) {
+                    throw new IOException("Corrupted permission snapshot");
+                }
+                offset += 4;
+            }
+        }
+        if (offset != indexOffset) {
+            throw new IOException("Corrupted permission snapshot");
+        }
+    }
+
+    /**
+     * Opens a snapshot file; the file is mapped in memory and can be replaced (not overwritten) while the snapshot is open.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static PermissionSnapshot open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the channel is closed
+            return new PermissionSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length()));
+        }
+    }
+
+    /**
+     * Writes a snapshot file; the snapshot is written to a temporary file, which is then renamed, so that open snapshots are never overwritten.
+     *
+     * @param permissions the permissions, by user name
+     * @param file the snapshot file
+     * @throws IOException
+     */
+    public static void write(Map<String, ? extends Collection<String>> permissions, File file)
+            throws IOException {
+        Map<String, Integer> tokenIds = new HashMap<String, Integer>();
+        List<String> tokenList = new ArrayList<String>();
+        List<UserRecord> users = new ArrayList<UserRecord>(permissions.size());
+        for (Map.Entry<String, ? extends Collection<String>> entry : permissions.entrySet()) {
+            users.add(new UserRecord(encode(entry.getKey()), entry.getValue()));
+            for (String token : entry.getValue()) {
+                if (token != null && !tokenIds.containsKey(token)) {
+                    tokenIds.put(token, tokenList.size());
+                    tokenList.add(token);
+                }
+            }
+        }
+        Collections.sort(users);
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tokenList.size());
+            out.writeInt(users.size());
+            for (String token : tokenList) {
+                writeBytes(out, encode(token));
+            }
+            int[] offsets = new int[users.size()];
+            for (int i = 0; i < users.size(); i++) {
+                UserRecord user = users.get(i);
+                offsets[i] = out.size();
+                writeBytes(out, user.name);
+                List<Integer> ids = new ArrayList<Integer>();
+                for (String token : user.tokens) {
+                    if (token != null) {
+                        ids.add(tokenIds.get(token));
+                    }
+                }
+                out.writeInt(ids.size());
+                for (int id : ids) {
+                    out.writeInt(id);
+                }
+            }
+            int indexOffset = out.size();
+            if (indexOffset == Integer.MAX_VALUE) {
+                // DataOutputStream stops counting there
+                throw new IOException("Permission snapshot too large");
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.writeInt(indexOffset);
+        }
+        if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+            throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private static byte[] encode(String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Value too long: " + value.substring(0, 64) + "...");
+        }
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(int offset) {
+        byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 2);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return the number of users in the snapshot
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * Looks up the permissions of a user; user names are compared exactly.
+     *
+     * @param login the user name
+     * @return the (canonical) permissions of the user, {@link PermissionSet#EMPTY} if the user is not in the snapshot
+     */
+    public PermissionSet get(String login) {
+        byte[] key = login.getBytes(UTF8);
+        int low = 0;
+        int high = userCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = buffer.getInt(indexOffset + 4 * mid);
+            int cmp = compareName(offset, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readTokens(offset + 2 + key.length);
+            }
+        }
+        return PermissionSet.EMPTY;
+    }
+
+    private int compareName(int offset, byte[] key) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (buffer.get(offset + 2 + i) & 0xFF) - (key[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    private PermissionSet readTokens(int offset) {
+        int count = buffer.getInt(offset);
+        String[] userTokens = new String[count];
+        for (int i = 0; i < count; i++) {
+            userTokens[i] = tokens[buffer.getInt(offset + 4 + 4 * i)];
+        }
+        return PermissionSet.of(userTokens);
+    }
+
+    /**
+     * A user record to write, sorted by name (comparing UTF-8 bytes, as lookups do).
+     */
+    private static final class UserRecord implements Comparable<UserRecord> {
+
+        final byte[] name;
+
+        final Collection<String> tokens;
+
+        UserRecord(byte[] name, Collection<String> tokens) {
+            this.name = name;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public int compareTo(UserRecord other) {
+            int length = Math.min(name.length, other.name.length);
+            for (int i = 0; i < length; i++) {
+                int diff = (name[i] & 0xFF) - (other.name[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return name.length - other.name.length;
+        }
+    }
+
+}
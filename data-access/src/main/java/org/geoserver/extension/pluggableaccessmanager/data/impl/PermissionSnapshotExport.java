@@ -0,0 +1,68 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Command line tool exporting the permissions read by the JDBC data access configured in a {@code data-access.properties} file to a
+ * {@link PermissionSnapshot} file.
+ *
+ * <p>
+ * Usage: {@code PermissionSnapshotExport <data-access.properties> <snapshot file>}
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public final class PermissionSnapshotExport {
+
+    private static final Logger LOGGER = Logging.getLogger(PermissionSnapshotExport.class);
+
+    private PermissionSnapshotExport() {
+    }
+
+    /**
+     * Exports the permissions of all users to a snapshot file.
+     *
+     * @param configFile the data access configuration file
+     * @param snapshotFile the snapshot file
+     * @return the number of exported users
+     * @throws IOException
+     */
+    public static int export(File configFile, File snapshotFile) throws IOException {
+        configFile = configFile.getAbsoluteFile();
+        DataAccess dataAccess = new DefaultDataAccessProvider(configFile.getParentFile(),
+                configFile.getName()).getDataAccess();
+        try {
+            if (!(dataAccess instanceof DefaultDataAccess)) {
+                throw new IllegalArgumentException("The configured data access backend is not JDBC");
+            }
+            Map<String, PermissionSet> permissions = ((DefaultDataAccess) dataAccess)
+                    .getAllUserPermissions();
+            PermissionSnapshot.write(permissions, snapshotFile);
+            return permissions.size();
+        } finally {
+            dataAccess.dispose();
+        }
+    }
+
+    /**
+     * @param args the configuration file and the snapshot file
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException(
+                    "Usage: PermissionSnapshotExport <data-access.properties> <snapshot file>");
+        }
+        int users = export(new File(args[0]), new File(args[1]));
+        LOGGER.info("Exported the permissions of " + users + " users to " + args[1]);
+    }
+
+}
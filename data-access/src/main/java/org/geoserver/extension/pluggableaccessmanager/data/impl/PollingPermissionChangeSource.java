@@ -0,0 +1,202 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+import org.geotools.data.Transaction;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.util.logging.Logging;
+
+/**
+ * {@link PermissionChangeSource} polling a change log table, where a row is inserted (e.g. by a trigger on {@code service_access}) for each
+ * user whose grants change.
+ *
+ * <p>
+ * Rows are identified by a monotonically increasing version number: the highest version seen so far is kept, and each poll only reads the
+ * rows having a higher version. The table is expected to have the following columns:
+ * </p>
+ * <ul>
+ * <li>{@code "VERSION"}: the version number, e.g. an identity or sequence column;</li>
+ * <li>{@code "USER"}: the name of the user whose grants changed.</li>
+ * </ul>
+ *
+ * <p>
+ * Versions are assigned before the inserting transaction commits, so a row may become visible after rows having a higher version have been
+ * read. Each poll therefore reads again the rows within a {@link #setSafetyWindow(long) safety window} below the highest version, and only
+ * reports the ones it has not seen yet; a row committed later than that is missed.
+ * </p>
+ *
+ * <p>
+ * Old rows can be purged at will, as long as the rows within the safety window below the highest version are kept.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class PollingPermissionChangeSource implements PermissionChangeSource {
+
+    private static final Logger LOGGER = Logging.getLogger(PollingPermissionChangeSource.class);
+
+    /** Default name of the change log table. */
+    static final String DEFAULT_TABLE = "service_access_changes";
+
+    /** Maximum number of changes read per poll; further changes are read by the next poll. */
+    static final int MAX_CHANGES = 10000;
+
+    /** Default number of versions below the highest version seen which are read again by each poll. */
+    static final long DEFAULT_SAFETY_WINDOW = 1000;
+
+    /** The provider of the data store the change log table is read from. */
+    final DefaultDataAccessProvider provider;
+
+    /** The data store the change log table is read from, if given directly. */
+    final JDBCDataStore dataStore;
+
+    /** The name of the change log table. */
+    String table = DEFAULT_TABLE;
+
+    /** The highest version seen so far, {@code null} before the first poll. */
+    Long highWaterMark;
+
+    /** The number of versions below the highest version seen which are read again by each poll. */
+    long safetyWindow = DEFAULT_SAFETY_WINDOW;
+
+    /** The versions seen within the safety window. */
+    final SortedSet<Long> seen = new TreeSet<Long>();
+
+    /**
+     * Constructor.
+     *
+     * @param provider the provider of the data access whose database hosts the change log table
+     */
+    public PollingPermissionChangeSource(DefaultDataAccessProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("Provider cannot be null");
+        }
+        this.provider = provider;
+        this.dataStore = null;
+    }
+
+    /**
+     * Constructor, used by data accesses polling the changes themselves, while their provider is still creating them.
+     *
+     * @param dataStore the data store hosting the change log table
+     */
+    PollingPermissionChangeSource(JDBCDataStore dataStore) {
+        if (dataStore == null) {
+            throw new IllegalArgumentException("Data store cannot be null");
+        }
+        this.provider = null;
+        this.dataStore = dataStore;
+    }
+
+    /**
+     * @return the name of the change log table
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @param table the name of the change log table, a plain identifier optionally qualified by schema
+     * @throws IllegalArgumentException if the name is not a plain identifier
+     */
+    public void setTable(String table) {
+        // concatenated into the queries
+        PermissionQueries.checkIdentifier("changes table", table);
+        this.table = table;
+    }
+
+    /**
+     * @return the number of versions below the highest version seen which are read again by each poll
+     */
+    public long getSafetyWindow() {
+        return safetyWindow;
+    }
+
+    /**
+     * @param safetyWindow the number of versions below the highest version seen which are read again by each poll, so that rows committed
+     *        late are not missed; should exceed the number of changes which can be logged while a transaction is in progress
+     */
+    public void setSafetyWindow(long safetyWindow) {
+        if (safetyWindow < 0) {
+            throw new IllegalArgumentException("Invalid safety window: " + safetyWindow);
+        }
+        this.safetyWindow = safetyWindow;
+    }
+
+    @Override
+    public Set<String> poll() throws IOException {
+        JDBCDataStore dataStore = (this.dataStore != null) ? this.dataStore : provider
+                .getDataStore();
+        try (Connection conn = dataStore.getConnection(Transaction.AUTO_COMMIT)) {
+            if (highWaterMark == null) {
+                highWaterMark = getMaxVersion(conn);
+                // changes logged so far are not reported, but must be known as seen
+                readChanges(conn, new HashSet<String>());
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Polling permission changes from " + table + " after version "
+                            + highWaterMark);
+                }
+                return null;
+            }
+
+            Set<String> users = new HashSet<String>();
+            readChanges(conn, users);
+            if (LOGGER.isLoggable(Level.FINE) && !users.isEmpty()) {
+                LOGGER.log(Level.FINE, "Permissions changed for users {0}", users);
+            }
+            return users;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the rows above the safety window, adding the users of the rows not seen yet, and advances the high-water mark.
+     */
+    private void readChanges(Connection conn, Set<String> users) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT \"VERSION\", \"USER\" FROM "
+                + table + " WHERE \"VERSION\" > ? ORDER BY \"VERSION\"")) {
+            ps.setLong(1, highWaterMark - safetyWindow);
+            // the rows seen within the window don't count
+            ps.setMaxRows((int) Math.min(MAX_CHANGES + safetyWindow, Integer.MAX_VALUE));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long version = rs.getLong(1);
+                    if (seen.add(version)) {
+                        users.add(rs.getString(2));
+                    }
+                    highWaterMark = Math.max(highWaterMark, version);
+                }
+            }
+        }
+        // versions below the window are not read again
+        seen.headSet(highWaterMark - safetyWindow + 1).clear();
+    }
+
+    private long getMaxVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+                ResultSet rs = st.executeQuery("SELECT MAX(\"VERSION\") FROM " + table)) {
+            // MAX returns NULL on an empty table, i.e. 0
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        // connections are returned to the pool after each poll
+    }
+
+}
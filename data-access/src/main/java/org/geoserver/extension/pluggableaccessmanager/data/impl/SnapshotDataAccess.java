@@ -0,0 +1,147 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.util.logging.Logging;
+
+/**
+ * {@link DataAccess} implementation reading the permissions from a local {@link PermissionSnapshot}, with no database involved.
+ *
+ * <p>
+ * The snapshot file is checked for changes at most every {@value #CHECK_INTERVAL} milliseconds: a replaced snapshot is opened and swapped in,
+ * while lookups keep being served by the previous one. User names are compared exactly.
+ * </p>
+ *
+ * @author Stefano Costa, GeoSolutions
+ *
+ */
+public class SnapshotDataAccess implements DataAccess {
+
+    private static final Logger LOGGER = Logging.getLogger(SnapshotDataAccess.class);
+
+    /** Minimum time between two checks of the snapshot file, in milliseconds. */
+    static final long CHECK_INTERVAL = 10000;
+
+    /** The snapshot file. */
+    final File file;
+
+    /** The current snapshot. */
+    volatile PermissionSnapshot snapshot;
+
+    /** The modification time of the file the current snapshot was opened from. */
+    long lastModified;
+
+    /** The time of the last check of the snapshot file. */
+    volatile long lastCheck;
+
+    /**
+     * Constructor.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot cannot be opened
+     */
+    SnapshotDataAccess(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Snapshot file cannot be null");
+        }
+        this.file = file;
+        this.lastModified = file.lastModified();
+        this.snapshot = PermissionSnapshot.open(file);
+        this.lastCheck = System.currentTimeMillis();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Opened permission snapshot " + file + " with "
+                    + snapshot.getUserCount() + " users");
+        }
+    }
+
+    @Override
+    public PermissionSet getUserPermissions(String login) throws IOException {
+        ensureNotNull("login", login);
+        return getSnapshot().get(login);
+    }
+
+    @Override
+    public Map<String, PermissionSet> getUserPermissions(Collection<String> logins)
+            throws IOException {
+        ensureNotNull("logins", logins);
+        PermissionSnapshot current = getSnapshot();
+        Map<String, PermissionSet> result = new LinkedHashMap<String, PermissionSet>();
+        for (String login : logins) {
+            ensureNotNull("login", login);
+            result.put(login, current.get(login));
+        }
+        return result;
+    }
+
+    /**
+     * Versioning is not supported: lookups are cheap anyway.
+     */
+    @Override
+    public String getPermissionsVersion(String login) {
+        return null;
+    }
+
+    /**
+     * Returns the current snapshot, after opening the snapshot file again if it has been replaced.
+     */
+    PermissionSnapshot getSnapshot() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck >= CHECK_INTERVAL) {
+            synchronized (this) {
+                if (now - lastCheck >= CHECK_INTERVAL) {
+                    reloadIfModified();
+                    lastCheck = now;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void reloadIfModified() {
+        long modified = file.lastModified();
+        if (modified == lastModified || modified == 0) {
+            // unchanged, or being replaced
+            return;
+        }
+        try {
+            snapshot = PermissionSnapshot.open(file);
+            lastModified = modified;
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Reloaded permission snapshot " + file + " with "
+                        + snapshot.getUserCount() + " users");
+            }
+        } catch (IOException e) {
+            keepPrevious(modified, e);
+        } catch (RuntimeException e) {
+            // not expected from a checked snapshot, but lookups must keep working
+            keepPrevious(modified, e);
+        }
+    }
+
+    private void keepPrevious(long modified, Exception e) {
+        LOGGER.log(Level.WARNING, "Could not reload permission snapshot " + file
+                + ", keeping the previous one", e);
+        // don't try again until the file changes
+        lastModified = modified;
+    }
+
+    @Override
+    public void dispose() {
+        // the mapping is released when the snapshot is garbage collected
+    }
+
+    private void ensureNotNull(String name, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException(name + " cannot be null");
+        }
+    }
+
+}
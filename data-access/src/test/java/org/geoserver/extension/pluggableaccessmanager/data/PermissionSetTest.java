@@ -0,0 +1,74 @@
+package org.geoserver.extension.pluggableaccessmanager.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PermissionSetTest {
+
+    @Test
+    public void testSortedAndDistinct() {
+        PermissionSet permissions = PermissionSet.of("'607'", "'43'", "'601'", null, "'43'");
+        assertEquals(Arrays.asList("'43'", "'601'", "'607'"), permissions);
+        assertEquals(Arrays.asList("'43'", "'601'", "'607'").hashCode(), permissions.hashCode());
+        assertTrue(permissions.contains("'601'"));
+        assertFalse(permissions.contains("'605'"));
+    }
+
+    @Test
+    public void testCanonical() {
+        List<String> tokens = new ArrayList<String>();
+        tokens.add(new String("105"));
+        tokens.add(new String("106"));
+        PermissionSet first = PermissionSet.of(tokens);
+        PermissionSet second = PermissionSet.of(new String("106"), new String("105"));
+        assertSame(first, second);
+        assertSame(first, PermissionSet.of(first));
+        // tokens are interned
+        assertSame("105", second.get(0));
+
+        assertSame(PermissionSet.EMPTY, PermissionSet.of(Collections.<String> emptyList()));
+        assertSame(PermissionSet.EMPTY, PermissionSet.of((String) null));
+    }
+
+    @Test
+    public void testDigest() {
+        PermissionSet permissions = PermissionSet.of("105", "106");
+        assertEquals(32, permissions.getDigest().length());
+        assertSame(permissions.getDigest(), permissions.getDigest());
+        assertFalse(permissions.getDigest().equals(PermissionSet.of("105106").getDigest()));
+        assertFalse(permissions.getDigest().equals(PermissionSet.EMPTY.getDigest()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        PermissionSet.of("105").add("106");
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        PermissionSet permissions = PermissionSet.of("105", "106");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(permissions);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()))) {
+            assertSame(permissions, in.readObject());
+        }
+    }
+
+}
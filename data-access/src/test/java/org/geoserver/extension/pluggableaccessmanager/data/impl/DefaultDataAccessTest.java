@@ -1,12 +1,17 @@
 package org.geoserver.extension.pluggableaccessmanager.data.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,6 +19,7 @@ import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
 import org.geoserver.extension.pluggableaccessmanager.data.OnlineTestCase;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DefaultTransaction;
@@ -132,8 +138,39 @@ public class DefaultDataAccessTest extends OnlineTestCase {
     @Test
     public void testGetUserModules() throws IOException {
         assertTrue(dataAccess.getUserPermissions("doesnotexist").isEmpty());
-        assertEquals("43,607,601,605,666",
+        // permissions are sorted
+        assertEquals("43,601,605,607,666",
                 StringUtils.join(dataAccess.getUserPermissions("sea.subscriber"), ","));
     }
 
+    @Test
+    public void testGetUsersModules() throws IOException {
+        List<String> logins = new ArrayList<String>();
+        logins.add("sea.subscriber");
+        logins.add("geoserver@test_user");
+        // more users than fit in a single query
+        for (int i = 0; i < DefaultDataAccess.MAX_BATCH_SIZE; i++) {
+            logins.add("doesnotexist" + i);
+        }
+        Map<String, PermissionSet> permissions = dataAccess.getUserPermissions(logins);
+        assertEquals(logins.size(), permissions.size());
+        assertSame(dataAccess.getUserPermissions("sea.subscriber"),
+                permissions.get("sea.subscriber"));
+        assertSame(dataAccess.getUserPermissions("geoserver@test_user"),
+                permissions.get("geoserver@test_user"));
+        assertEquals(1, permissions.get("geoserver@test_user").size());
+        assertSame(PermissionSet.EMPTY, permissions.get("doesnotexist0"));
+    }
+
+    @Test
+    public void testGetUsersModulesPadded() throws IOException {
+        // a partial batch is padded with the last user name
+        Map<String, PermissionSet> permissions = dataAccess.getUserPermissions(Arrays.asList(
+                "geoserver@test_user", "sea.subscriber"));
+        assertEquals(2, permissions.size());
+        assertEquals("43,601,605,607,666",
+                StringUtils.join(permissions.get("sea.subscriber"), ","));
+        assertEquals(1, permissions.get("geoserver@test_user").size());
+    }
+
 }
@@ -0,0 +1,191 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionChangeSource;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.geotools.jdbc.JDBCDataStore;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryDataAccessTest {
+
+    private String[][] rows;
+
+    private int loadCount;
+
+    private int userLoadCount;
+
+    private boolean failing;
+
+    private Set<String> changedUsers;
+
+    private DefaultDataAccess source;
+
+    @Before
+    public void setUp() {
+        rows = new String[][] { { "bob", "105" }, { "bob", "106" }, { "alice", "105" },
+                { "carol", "106" }, { "carol", "105" } };
+        source = new DefaultDataAccess(new JDBCDataStore()) {
+            @Override
+            void readAllPermissions(PermissionHandler handler) throws IOException {
+                if (failing) {
+                    throw new IOException("Database unavailable");
+                }
+                loadCount++;
+                for (String[] row : rows) {
+                    handler.handle(row[0], row[1]);
+                }
+            }
+
+            @Override
+            public Map<String, PermissionSet> getUserPermissions(Collection<String> logins)
+                    throws IOException {
+                userLoadCount++;
+                Map<String, PermissionSet> result = new LinkedHashMap<String, PermissionSet>();
+                for (String login : logins) {
+                    List<String> tokens = new ArrayList<String>();
+                    for (String[] row : rows) {
+                        if (row[0].equalsIgnoreCase(login)) {
+                            tokens.add(row[1]);
+                        }
+                    }
+                    result.put(login, PermissionSet.of(tokens));
+                }
+                return result;
+            }
+
+            @Override
+            public void dispose() {
+                // no connection pool
+            }
+        };
+    }
+
+    @Test
+    public void testLookups() throws IOException {
+        InMemoryDataAccess dataAccess = new InMemoryDataAccess(source, null, 0, 1);
+        assertEquals(1, loadCount);
+        assertEquals(3, dataAccess.getUserCount());
+        assertEquals(PermissionSet.of("105", "106"), dataAccess.getUserPermissions("bob"));
+        assertSame(PermissionSet.EMPTY, dataAccess.getUserPermissions("nobody"));
+        // users granted the same permissions share a single instance
+        assertSame(dataAccess.getUserPermissions("bob"), dataAccess.getUserPermissions("carol"));
+
+        Map<String, PermissionSet> permissions = dataAccess.getUserPermissions(Arrays.asList(
+                "alice", "nobody"));
+        assertEquals(PermissionSet.of("105"), permissions.get("alice"));
+        assertSame(PermissionSet.EMPTY, permissions.get("nobody"));
+        assertEquals(dataAccess.getUserPermissions("bob").getDigest(),
+                dataAccess.getPermissionsVersion("bob"));
+        // no further database access
+        assertEquals(1, loadCount);
+    }
+
+    @Test
+    public void testReloadOnChange() throws IOException {
+        PermissionChangeSource changes = new PermissionChangeSource() {
+            @Override
+            public Set<String> poll() {
+                return changedUsers;
+            }
+
+            @Override
+            public void dispose() {
+            }
+        };
+        InMemoryDataAccess dataAccess = new InMemoryDataAccess(source, changes, 0, 1);
+
+        // no changes --> no reload
+        changedUsers = Collections.emptySet();
+        dataAccess.check();
+        assertEquals(0, dataAccess.getReloadCount());
+        assertEquals(0, dataAccess.getDeltaCount());
+
+        // only the changed users are reloaded
+        rows = new String[][] { { "bob", "105" } };
+        changedUsers = new HashSet<String>(Arrays.asList("bob", "carol"));
+        dataAccess.check();
+        assertEquals(0, dataAccess.getReloadCount());
+        assertEquals(1, dataAccess.getDeltaCount());
+        assertEquals(1, loadCount);
+        assertEquals(1, userLoadCount);
+        assertEquals(PermissionSet.of("105"), dataAccess.getUserPermissions("bob"));
+        assertSame(PermissionSet.EMPTY, dataAccess.getUserPermissions("carol"));
+        assertEquals(PermissionSet.of("105"), dataAccess.getUserPermissions("alice"));
+        assertEquals(2, dataAccess.getUserCount());
+        assertEquals(changedUsers, dataAccess.pollAppliedChanges());
+
+        // changes may have been missed --> full reload
+        changedUsers = null;
+        dataAccess.check();
+        assertEquals(1, dataAccess.getReloadCount());
+        assertSame(PermissionSet.EMPTY, dataAccess.getUserPermissions("alice"));
+    }
+
+    @Test
+    public void testUserNamesIgnoreCase() throws IOException {
+        rows = new String[][] { { "Bob", "105" }, { "bob", "106" }, { "alice", "105" } };
+        InMemoryDataAccess dataAccess = new InMemoryDataAccess(source, null, 0, 1);
+        assertEquals(2, dataAccess.getUserCount());
+        assertEquals(PermissionSet.of("105", "106"), dataAccess.getUserPermissions("BOB"));
+        assertEquals(PermissionSet.of("105"), dataAccess.getUserPermissions("Alice"));
+        assertEquals(PermissionSet.of("105"),
+                dataAccess.getUserPermissions(Arrays.asList("ALICE")).get("ALICE"));
+
+        // changes are reported with the user names as stored
+        dataAccess.pollAppliedChanges();
+        rows = new String[][] { { "Carol", "105" } };
+        dataAccess.reload(Collections.singleton("Carol"));
+        assertEquals(PermissionSet.of("105"), dataAccess.getUserPermissions("carol"));
+        assertEquals(Collections.singleton("Carol"), dataAccess.pollAppliedChanges());
+        dataAccess.reload();
+        assertEquals(new HashSet<String>(Arrays.asList("Bob", "alice")),
+                dataAccess.pollAppliedChanges());
+    }
+
+    @Test
+    public void testAppliedChanges() throws IOException {
+        InMemoryDataAccess dataAccess = new InMemoryDataAccess(source, null, 0, 1);
+        dataAccess.reload();
+        // nothing changed
+        assertTrue(dataAccess.pollAppliedChanges().isEmpty());
+
+        // bob loses a permission, alice is removed, dave is added, carol is unchanged
+        rows = new String[][] { { "bob", "105" }, { "carol", "106" }, { "carol", "105" },
+                { "dave", "105" } };
+        dataAccess.reload();
+        assertEquals(new HashSet<String>(Arrays.asList("bob", "alice", "dave")),
+                dataAccess.pollAppliedChanges());
+        assertTrue(dataAccess.pollAppliedChanges().isEmpty());
+    }
+
+    @Test
+    public void testFailedReloadKeepsIndex() throws IOException {
+        InMemoryDataAccess dataAccess = new InMemoryDataAccess(source, null, 1, 1);
+        failing = true;
+        try {
+            dataAccess.reload();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, dataAccess.getReloadCount());
+        assertTrue(dataAccess.getUserPermissions("bob").contains("106"));
+    }
+
+}
@@ -1,11 +1,12 @@
 package org.geoserver.extension.pluggableaccessmanager.data.impl;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
 
 /**
  * Mock {@link DataAccess} implementation, used for testing.
@@ -16,15 +17,33 @@ import org.geoserver.extension.pluggableaccessmanager.data.DataAccess;
 public class MockDataAccess implements DataAccess {
 
     @Override
-    public List<String> getUserPermissions(String login) throws IOException {
+    public PermissionSet getUserPermissions(String login) throws IOException {
         if ("bob".equals(login)) {
-            return Arrays.asList("105", "106");
+            return PermissionSet.of("105", "106");
         } else if ("alice".equals(login)) {
-            return Arrays.asList("105");
+            return PermissionSet.of("105");
         } else if ("sam".equals(login)) {
-            return Arrays.asList("110");
+            return PermissionSet.of("110");
         }
-        return Collections.emptyList();
+        return PermissionSet.EMPTY;
+    }
+
+    @Override
+    public Map<String, PermissionSet> getUserPermissions(Collection<String> logins)
+            throws IOException {
+        Map<String, PermissionSet> result = new LinkedHashMap<String, PermissionSet>();
+        for (String login : logins) {
+            result.put(login, getUserPermissions(login));
+        }
+        return result;
+    }
+
+    /**
+     * Mock permissions never change, the version is derived from the permissions themselves.
+     */
+    @Override
+    public String getPermissionsVersion(String login) throws IOException {
+        return getUserPermissions(login).getDigest();
     }
 
     @Override
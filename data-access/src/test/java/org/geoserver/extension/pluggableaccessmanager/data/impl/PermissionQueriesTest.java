@@ -0,0 +1,76 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class PermissionQueriesTest {
+
+    @Test
+    public void testDefaults() {
+        Properties config = new Properties();
+        config.setProperty("dbtype", "postgis");
+        PermissionQueries queries = PermissionQueries.fromProperties(config);
+
+        assertEquals("SELECT \"SERVICE_ID\" FROM service_access WHERE \"USER\" = ?",
+                queries.userQuery);
+        assertEquals("SELECT \"USER\", \"SERVICE_ID\" FROM service_access WHERE \"USER\" IN (",
+                queries.usersQuery);
+        assertEquals("SELECT \"USER\", \"SERVICE_ID\" FROM service_access", queries.allQuery);
+        assertFalse(queries.callable);
+        assertEquals(0, queries.fetchSize);
+        assertNull(queries.versionQuery);
+        // data store parameters are left alone
+        assertEquals("postgis", config.getProperty("dbtype"));
+    }
+
+    @Test
+    public void testCustomTable() {
+        Properties config = new Properties();
+        config.setProperty(PermissionQueries.TABLE_KEY, "acl.user_grants_v");
+        config.setProperty(PermissionQueries.USER_COLUMN_KEY, "LOGIN");
+        config.setProperty(PermissionQueries.PERMISSION_COLUMN_KEY, "GRANT_ID");
+        config.setProperty(PermissionQueries.FETCH_SIZE_KEY, "500");
+        PermissionQueries queries = PermissionQueries.fromProperties(config);
+
+        assertEquals("SELECT \"GRANT_ID\" FROM acl.user_grants_v WHERE \"LOGIN\" = ?",
+                queries.userQuery);
+        assertEquals(500, queries.fetchSize);
+        assertTrue(config.isEmpty());
+    }
+
+    @Test
+    public void testStoredProcedure() {
+        Properties config = new Properties();
+        config.setProperty(PermissionQueries.USER_QUERY_KEY, " {call get_user_access(?)} ");
+        config.setProperty(PermissionQueries.VERSION_QUERY_KEY, "SELECT v FROM versions WHERE u = ?");
+        PermissionQueries queries = PermissionQueries.fromProperties(config);
+
+        assertEquals("{call get_user_access(?)}", queries.userQuery);
+        assertTrue(queries.callable);
+        // no bulk query for custom queries
+        assertNull(queries.usersQuery);
+        assertNull(queries.allQuery);
+        assertEquals("SELECT v FROM versions WHERE u = ?", queries.versionQuery);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTable() {
+        Properties config = new Properties();
+        config.setProperty(PermissionQueries.TABLE_KEY, "service_access; DROP TABLE x");
+        PermissionQueries.fromProperties(config);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFetchSize() {
+        Properties config = new Properties();
+        config.setProperty(PermissionQueries.FETCH_SIZE_KEY, "many");
+        PermissionQueries.fromProperties(config);
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.extension.pluggableaccessmanager.data.PermissionSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PermissionSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, List<String>> permissions = new LinkedHashMap<String, List<String>>();
+        permissions.put("bob", Arrays.asList("105", "106"));
+        permissions.put("alice", Arrays.asList("105"));
+        permissions.put("Zoë", Arrays.asList("107", "105"));
+        permissions.put("carol", Collections.<String> emptyList());
+        File file = folder.newFile("permissions.snapshot");
+        PermissionSnapshot.write(permissions, file);
+
+        PermissionSnapshot snapshot = PermissionSnapshot.open(file);
+        assertEquals(4, snapshot.getUserCount());
+        assertEquals(PermissionSet.of("105", "106"), snapshot.get("bob"));
+        assertEquals(PermissionSet.of("105"), snapshot.get("alice"));
+        assertEquals(PermissionSet.of("107", "105"), snapshot.get("Zoë"));
+        assertEquals(0, snapshot.get("carol").size());
+        assertSame(PermissionSet.EMPTY, snapshot.get("nobody"));
+        // user names are compared exactly
+        assertSame(PermissionSet.EMPTY, snapshot.get("Bob"));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        File file = folder.newFile("permissions.snapshot");
+        PermissionSnapshot.write(Collections.<String, Collection<String>> emptyMap(), file);
+
+        PermissionSnapshot snapshot = PermissionSnapshot.open(file);
+        assertEquals(0, snapshot.getUserCount());
+        assertSame(PermissionSet.EMPTY, snapshot.get("bob"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASnapshot() throws IOException {
+        PermissionSnapshot.open(folder.newFile("data-access.properties"));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        File file = folder.newFile("permissions.snapshot");
+        PermissionSnapshot.write(
+                Collections.singletonMap("bob", Arrays.asList("105", "106")), file);
+        // header, tokens ("105", "106"), then bob's record: name, count, token ids
+        int tokenIdOffset = 16 + 2 * 5 + 2 + 3 + 4;
+        corrupt(file, tokenIdOffset, 1000);
+        try {
+            PermissionSnapshot.open(file);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        PermissionSnapshot.write(
+                Collections.singletonMap("bob", Arrays.asList("105", "106")), file);
+        // user index entry pointing past the records
+        corrupt(file, (int) file.length() - 8, (int) file.length());
+        try {
+            PermissionSnapshot.open(file);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void corrupt(File file, int offset, int value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            raf.writeInt(value);
+        }
+    }
+
+    @Test
+    public void testSnapshotDataAccessKeepsPreviousOnCorruptFile() throws IOException {
+        File file = folder.newFile("permissions.snapshot");
+        PermissionSnapshot.write(
+                Collections.singletonMap("bob", Arrays.asList("105", "106")), file);
+        SnapshotDataAccess dataAccess = new SnapshotDataAccess(file);
+
+        PermissionSnapshot.write(Collections.singletonMap("bob", Arrays.asList("105")), file);
+        // the token id in bob's record
+        corrupt(file, 16 + 2 + 3 + 2 + 3 + 4, -1);
+        file.setLastModified(dataAccess.lastModified + 1000);
+        dataAccess.lastCheck = 0;
+        assertEquals(PermissionSet.of("105", "106"), dataAccess.getUserPermissions("bob"));
+        // not checked again until the file changes
+        assertEquals(file.lastModified(), dataAccess.lastModified);
+    }
+
+    @Test
+    public void testSnapshotDataAccess() throws IOException {
+        File file = folder.newFile("permissions.snapshot");
+        PermissionSnapshot.write(
+                Collections.singletonMap("bob", Arrays.asList("105", "106")), file);
+
+        SnapshotDataAccess dataAccess = new SnapshotDataAccess(file);
+        assertEquals(PermissionSet.of("105", "106"), dataAccess.getUserPermissions("bob"));
+        Map<String, PermissionSet> permissions = dataAccess.getUserPermissions(Arrays.asList(
+                "bob", "alice"));
+        assertEquals(2, permissions.size());
+        assertSame(PermissionSet.EMPTY, permissions.get("alice"));
+        assertNull(dataAccess.getPermissionsVersion("bob"));
+
+        // a replaced snapshot is picked up on the next check
+        PermissionSnapshot.write(Collections.singletonMap("alice", Arrays.asList("105")), file);
+        file.setLastModified(dataAccess.lastModified + 1000);
+        dataAccess.lastCheck = 0;
+        assertEquals(PermissionSet.of("105"), dataAccess.getUserPermissions("alice"));
+        assertSame(PermissionSet.EMPTY, dataAccess.getUserPermissions("bob"));
+    }
+
+}
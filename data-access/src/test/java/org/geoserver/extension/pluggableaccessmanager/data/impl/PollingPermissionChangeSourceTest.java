@@ -0,0 +1,130 @@
+package org.geoserver.extension.pluggableaccessmanager.data.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.Transaction;
+import org.geotools.jdbc.JDBCDataStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PollingPermissionChangeSourceTest {
+
+    private File dir;
+
+    private JDBCDataStore dataStore;
+
+    private PollingPermissionChangeSource source;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("./target/polling-changes");
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("dbtype", "h2");
+        params.put("database", new File(dir, "changes").getAbsolutePath());
+        dataStore = (JDBCDataStore) DataStoreFinder.getDataStore(params);
+        execute("CREATE TABLE service_access_changes (\"VERSION\" BIGINT PRIMARY KEY, \"USER\" VARCHAR(64))");
+        source = new PollingPermissionChangeSource(dataStore);
+    }
+
+    @After
+    public void tearDown() {
+        source.dispose();
+        dataStore.dispose();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private void execute(String sql) throws SQLException, IOException {
+        try (Connection conn = dataStore.getConnection(Transaction.AUTO_COMMIT);
+                Statement st = conn.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    private void logChange(long version, String user) throws Exception {
+        execute("INSERT INTO service_access_changes VALUES (" + version + ", '" + user + "')");
+    }
+
+    @Test
+    public void testHighWaterMark() throws Exception {
+        logChange(1, "bob");
+        logChange(2, "alice");
+
+        // changes logged before the first poll are not reported
+        assertNull(source.poll());
+        assertEquals(Long.valueOf(2), source.highWaterMark);
+
+        assertTrue(source.poll().isEmpty());
+
+        logChange(3, "bob");
+        logChange(4, "sam");
+        assertEquals(new HashSet<String>(Arrays.asList("bob", "sam")), source.poll());
+        assertEquals(Long.valueOf(4), source.highWaterMark);
+
+        // reported once only
+        assertTrue(source.poll().isEmpty());
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        assertNull(source.poll());
+        assertEquals(Long.valueOf(0), source.highWaterMark);
+
+        logChange(1, "bob");
+        assertEquals(Collections.singleton("bob"), source.poll());
+    }
+
+    @Test
+    public void testSafetyWindow() throws Exception {
+        source.setSafetyWindow(2);
+        logChange(10, "bob");
+        assertNull(source.poll());
+
+        logChange(12, "alice");
+        assertEquals(Collections.singleton("alice"), source.poll());
+
+        // committed late, within the window: reported
+        logChange(11, "sam");
+        assertEquals(Collections.singleton("sam"), source.poll());
+
+        // committed late, below the window: missed
+        logChange(20, "tom");
+        assertEquals(Collections.singleton("tom"), source.poll());
+        logChange(15, "ann");
+        assertTrue(source.poll().isEmpty());
+
+        // versions below the window are forgotten
+        assertTrue(source.seen.first() > source.highWaterMark - source.getSafetyWindow());
+    }
+
+    @Test
+    public void testInvalidTable() {
+        try {
+            source.setTable("service_access_changes; DROP TABLE service_access");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        source.setTable("public.service_access_changes");
+        assertEquals("public.service_access_changes", source.getTable());
+    }
+
+}
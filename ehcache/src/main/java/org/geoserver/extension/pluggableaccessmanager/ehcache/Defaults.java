@@ -6,4 +6,10 @@ public abstract class Defaults {
 
     public static final String RASTER_FILTERS_CACHE = "raster_filters";
 
+    public static final String DATA_SECURITY_TOKENS_CACHE = "data_security_tokens";
+
+    /** The caches that must be available, even if missing from a custom configuration file. */
+    public static final String[] CACHES = { PERMISSIONS_CACHE, RASTER_FILTERS_CACHE,
+            DATA_SECURITY_TOKENS_CACHE };
+
 }
@@ -9,6 +9,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
 
 import org.apache.commons.io.FileUtils;
 import org.springframework.beans.factory.DisposableBean;
@@ -92,6 +93,41 @@ public class EhCacheManagerFactoryBean implements FactoryBean<CacheManager>, Ini
         try (InputStream config = loadConfiguration(configDir)) {
             cacheManager = CacheManager.create(config);
         }
+        addMissingCaches(cacheManager);
+        alignDataSecurityTokens(cacheManager);
+    }
+
+    /**
+     * Adds the required caches missing from the configuration (e.g. a configuration file created by a previous version), with default settings.
+     */
+    void addMissingCaches(CacheManager cacheManager) {
+        for (String cacheName : Defaults.CACHES) {
+            if (!cacheManager.cacheExists(cacheName)) {
+                LOGGER.warning("Cache " + cacheName
+                        + " is not configured, it will be created with default settings");
+                cacheManager.addCache(cacheName);
+            }
+        }
+    }
+
+    /**
+     * Makes the data security tokens expire along with the permissions they derive from, whatever their configured expiration.
+     */
+    void alignDataSecurityTokens(CacheManager cacheManager) {
+        CacheConfiguration permissions = cacheManager.getCache(Defaults.PERMISSIONS_CACHE)
+                .getCacheConfiguration();
+        CacheConfiguration tokens = cacheManager.getCache(Defaults.DATA_SECURITY_TOKENS_CACHE)
+                .getCacheConfiguration();
+        if (tokens.isEternal() != permissions.isEternal()
+                || tokens.getTimeToLiveSeconds() != permissions.getTimeToLiveSeconds()
+                || tokens.getTimeToIdleSeconds() != permissions.getTimeToIdleSeconds()) {
+            LOGGER.warning("Cache " + Defaults.DATA_SECURITY_TOKENS_CACHE
+                    + " must expire along with " + Defaults.PERMISSIONS_CACHE
+                    + ", its expiration settings are overridden");
+            tokens.setEternal(permissions.isEternal());
+            tokens.setTimeToLiveSeconds(permissions.getTimeToLiveSeconds());
+            tokens.setTimeToIdleSeconds(permissions.getTimeToIdleSeconds());
+        }
     }
 
     @Override
@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import net.sf.ehcache.config.CacheConfiguration;
+
 import org.geoserver.extension.pluggableaccessmanager.ehcache.Defaults;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,11 +30,24 @@ public class EhCacheManagerFactoryBeanTest {
         CacheManager cacheManager = applicationContext.getBean(CacheManager.class);
         assertNotNull(cacheManager);
 
-        assertEquals(2, cacheManager.getCacheNames().size());
+        assertEquals(3, cacheManager.getCacheNames().size());
         List<String> cacheNames = new ArrayList<String>(cacheManager.getCacheNames());
         Collections.sort(cacheNames);
-        assertEquals(Defaults.PERMISSIONS_CACHE, cacheNames.get(0));
-        assertEquals(Defaults.RASTER_FILTERS_CACHE, cacheNames.get(1));
+        assertEquals(Defaults.DATA_SECURITY_TOKENS_CACHE, cacheNames.get(0));
+        assertEquals(Defaults.PERMISSIONS_CACHE, cacheNames.get(1));
+        assertEquals(Defaults.RASTER_FILTERS_CACHE, cacheNames.get(2));
+    }
+
+    @Test
+    public void testDataSecurityTokensExpireWithPermissions() {
+        net.sf.ehcache.CacheManager ehcache = applicationContext
+                .getBean(net.sf.ehcache.CacheManager.class);
+        CacheConfiguration permissions = ehcache.getCache(Defaults.PERMISSIONS_CACHE)
+                .getCacheConfiguration();
+        CacheConfiguration tokens = ehcache.getCache(Defaults.DATA_SECURITY_TOKENS_CACHE)
+                .getCacheConfiguration();
+        assertEquals(permissions.getTimeToLiveSeconds(), tokens.getTimeToLiveSeconds());
+        assertEquals(permissions.getTimeToIdleSeconds(), tokens.getTimeToIdleSeconds());
     }
 
 }